@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+
+/**
+ * ExecuteBenchmark measures full executions of the mojo with the Querydsl processor
+ *
+ * <p>Skipping of unchanged inputs is disabled, so that every invocation processes all sources. All invocations
+ * after the first one find the outputs of the previous one. Allocation and heap usage are reported by the
+ * profilers of JMH, e.g. with {@code -prof gc}.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecuteBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int entities;
+
+    @Param({"false", "true"})
+    public boolean directOutput;
+
+    @Param({"false", "true"})
+    public boolean streamSources;
+
+    private File directory;
+
+    private AnnotationProcessorMojo mojo;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDir();
+        File sources = new File(directory, "src/main/java");
+        SourceTrees.writeEntities(sources, entities, 0);
+        mojo = Mojos.createMojo(sources, new File(directory, "target"));
+        mojo.setDirectOutput(directOutput);
+        mojo.setStreamSources(streamSources);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void execute() throws MojoExecutionException {
+        mojo.execute();
+    }
+
+}
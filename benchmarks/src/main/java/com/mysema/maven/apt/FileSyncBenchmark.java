@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+
+/**
+ * FileSyncBenchmark measures the sync of a generated tree into an output directory from the previous run
+ *
+ * <p>In the unchanged case all files have the same content as in the output directory, in the changed case
+ * all files differ and in the deleted case every tenth file is no longer generated.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FileSyncBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int entities;
+
+    @Param({"unchanged", "changed", "deleted"})
+    public String change;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private File directory, source, target, manifest;
+
+    @Setup(Level.Trial)
+    public void setUpTrial() {
+        directory = Files.createTempDir();
+        source = new File(directory, "source");
+        target = new File(directory, "target");
+        manifest = new File(directory, "manifest");
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        FileUtils.deleteDirectory(source);
+        FileUtils.deleteDirectory(target);
+        manifest.delete();
+        source.mkdirs();
+        target.mkdirs();
+        SourceTrees.writeEntities(source, entities, 0);
+        FileSync.syncFiles(true, source, target, manifest);
+
+        FileUtils.deleteDirectory(source);
+        source.mkdirs();
+        SourceTrees.writeEntities(source, entities, change.equals("changed") ? 1 : 0);
+        if (change.equals("deleted")) {
+            SourceTrees.deleteEveryTenth(source, entities);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public FileSync.Result syncFiles() throws IOException {
+        return FileSync.syncFiles(true, source, target, manifest, parallelism);
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+
+/**
+ * MojoBenchmark measures the source scanning and the assembly of the compiler options of the mojo
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MojoBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int entities;
+
+    private File directory;
+
+    private AnnotationProcessorMojo mojo;
+
+    private Set<File> sourceDirectories;
+
+    private String classpath;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDir();
+        File sources = new File(directory, "src/main/java");
+        SourceTrees.writeEntities(sources, entities, 0);
+        mojo = Mojos.createMojo(sources, new File(directory, "target"));
+        sourceDirectories = mojo.getSourceDirectories();
+        classpath = System.getProperty("java.class.path");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public SourceScanner.Result scanSources() throws IOException {
+        return mojo.scanSources(sourceDirectories);
+    }
+
+    @Benchmark
+    public List<String> buildCompilerOptions() throws IOException {
+        return mojo.buildCompilerOptions(Mojos.PROCESSOR, classpath, classpath, mojo.getOutputDirectory().getAbsolutePath(), null);
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.project.MavenProject;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+/**
+ * Mojos creates processor mojos for the benchmarks
+ */
+final class Mojos {
+
+    static final String PROCESSOR = "com.mysema.query.apt.QuerydslAnnotationProcessor";
+
+    /**
+     * Create a mojo processing the given sources with the Querydsl processor of the benchmark classpath
+     *
+     * @param sources source directory
+     * @param buildDirectory build directory of the project
+     */
+    static AnnotationProcessorMojo createMojo(File sources, File buildDirectory) {
+        AnnotationProcessorMojo mojo = new AnnotationProcessorMojo();
+        mojo.setBuildContext(new DefaultBuildContext());
+        mojo.setProject(new MavenProject());
+        mojo.setProcessor(PROCESSOR);
+        mojo.setSourceEncoding("UTF-8");
+        mojo.setIncludes(new HashSet<String>());
+        mojo.setPluginArtifacts(Collections.<Artifact> emptyList());
+        mojo.setOutputDirectory(new File(buildDirectory, "generated-sources/java"));
+        mojo.setSkipUnchanged(false);
+        mojo.projectBuildDirectory = buildDirectory;
+        mojo.compileSourceRoots = Collections.singletonList(sources.getAbsolutePath());
+        mojo.compileClasspathElements = Arrays.asList(System.getProperty("java.class.path").split(File.pathSeparator));
+        return mojo;
+    }
+
+    private Mojos() {}
+
+}
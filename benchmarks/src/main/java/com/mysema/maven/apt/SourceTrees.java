@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * SourceTrees generates synthetic trees of entity sources for the benchmarks
+ */
+final class SourceTrees {
+
+    private static final int ENTITIES_PER_PACKAGE = 100;
+
+    /**
+     * Write the given amount of entities into the given directory
+     *
+     * @param directory root directory
+     * @param count amount of entities
+     * @param revision revision of the content, entities with different revisions differ in content
+     */
+    static void writeEntities(File directory, int count, int revision) throws IOException {
+        for (int i = 0; i < count; i++) {
+            String packageName = getPackageName(i);
+            File file = getFile(directory, i);
+            file.getParentFile().mkdirs();
+            Files.write("package " + packageName + ";\n\n"
+                    + "// revision " + revision + "\n"
+                    + "@com.mysema.query.annotations.QueryEntity\n"
+                    + "public class Entity" + i + " {\n"
+                    + "    String name;\n"
+                    + "    int value;\n"
+                    + "}\n", file, Charsets.UTF_8);
+        }
+    }
+
+    /**
+     * Delete every tenth of the given amount of entities from the given directory
+     */
+    static void deleteEveryTenth(File directory, int count) {
+        for (int i = 0; i < count; i += 10) {
+            getFile(directory, i).delete();
+        }
+    }
+
+    private static String getPackageName(int entity) {
+        return "com.example.p" + (entity / ENTITIES_PER_PACKAGE);
+    }
+
+    private static File getFile(File directory, int entity) {
+        return new File(directory, getPackageName(entity).replace('.', '/') + "/Entity" + entity + ".java");
+    }
+
+    private SourceTrees() {}
+
+}
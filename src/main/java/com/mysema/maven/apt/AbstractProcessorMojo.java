@@ -5,37 +5,47 @@
  */
 package com.mysema.maven.apt;
 
-import javax.tools.Diagnostic;
-import javax.tools.Diagnostic.Kind;
+import javax.annotation.processing.Processor;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaCompiler.CompilationTask;
-import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
 import javax.tools.ToolProvider;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.maven.artifact.Artifact;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.project.MavenProject;
-import org.codehaus.plexus.util.Scanner;
 import org.codehaus.plexus.util.StringUtils;
 import org.sonatype.plexus.build.incremental.BuildContext;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 
 /**
  * Base class for AnnotationProcessorMojo implementations
@@ -46,14 +56,38 @@ import com.google.common.base.Function;
 public abstract class AbstractProcessorMojo extends AbstractMojo {
 
     private static final String JAVA_FILE_FILTER = "/*.java";
+    // processors which use only the standard processing environment
+    private static final List<String> DEFAULT_TRACKED_PROCESSORS = Arrays.asList("com.mysema.query.apt.", "com.querydsl.apt.");
+
     private static final String[] ALL_JAVA_FILES_FILTER = new String[] { "**" + JAVA_FILE_FILTER };
 
+    private static final String STATE_DIRECTORY = "apt-state";
+
+    private static final String METRICS_DIRECTORY = "apt-metrics";
+
+    // maximum amount of forwarded diagnostics with the same message
+    private static final int DIAGNOSTIC_REPEAT_LIMIT = 100;
+
+    // characters of the compiler output kept for logOnlyOnError
+    private static final int ERROR_OUTPUT_LIMIT = 1024 * 1024;
+
+    private static final String CLASSPATH_INDEX_DIRECTORY = "apt-classpath";
+
+    private static final String PROFILE_DIRECTORY = "apt-profile";
+
+    private static final int PROFILE_LIMIT = 50;
+
+    private static final List<String> LOCATION_OPTIONS = Arrays.asList("cp", "classpath", "processorpath", "sourcepath", "s", "d");
+
     @Component
     private BuildContext buildContext;
 
     @Parameter(defaultValue = "${project}", readonly = true, required = true)
     private MavenProject project;
 
+    @Parameter(defaultValue = "${session}", readonly = true)
+    private MavenSession session;
+
     @Parameter
     private String[] processors;
 
@@ -86,6 +120,22 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
     @Parameter
     private Set<String> includes = new HashSet<String>();
 
+    /**
+     * A list of exclusion package filters for the apt processor, in the same format as the includes.
+     *
+     * <pre>
+     * e.g.:
+     * &lt;excludes&gt;
+     * 	&lt;exclude&gt;com.mypackge.generated.**&lt;/exclude&gt;
+     * &lt;/excludes&gt;
+     * </pre>
+     *
+     * will exclude all files which match com/mypackge/generated/ ** / *.java. Source directories of excluded
+     * packages are not traversed.
+     */
+    @Parameter
+    private Set<String> excludes = new HashSet<String>();
+
     @Parameter(defaultValue = "false")
     private boolean showWarnings;
 
@@ -98,6 +148,221 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
     @Parameter(defaultValue = "true")
     private boolean ignoreDelta;
 
+    /**
+     * Skip processing in non-incremental builds if sources, classpath, processors and options
+     * are unchanged since the last successful run. All Java sources of the source directories are
+     * fingerprinted, since javac reads sources outside of the includes through the sourcepath.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean skipUnchanged;
+
+    /**
+     * Process only changed sources and the sources their generated files depend on in non-incremental builds
+     *
+     * <p>The dependencies are recorded from the originating elements the processors pass to the Filer and
+     * from the supertypes, member types, field types and method return types of these. Types referenced in
+     * other ways, e.g. only through annotation values or method bodies, are not tracked, so a full build is
+     * needed after changing them. When a generated file has no originating elements in source form, all
+     * sources are processed. Only supported for the processors of trackedProcessors.</p>
+     */
+    @Parameter(defaultValue = "false")
+    private boolean incrementalProcessing;
+
+    /**
+     * Processors whose generated files are tracked for incrementalProcessing and for the routing of the
+     * process-all goal, given by class name or by package with a trailing dot. The tracked processors get a
+     * wrapper of the processing environment, so processors using compiler internals, e.g. through
+     * {@code Trees.instance(processingEnv)}, must not be listed.
+     */
+    @Parameter
+    private Set<String> trackedProcessors = new HashSet<String>(DEFAULT_TRACKED_PROCESSORS);
+
+    /**
+     * Amount of concurrent javac tasks the sources are split into by package
+     *
+     * <p>Only suitable for processors which handle each source on its own, since every task sees only
+     * its own share of the sources as root elements. Disabled with values below 2.</p>
+     */
+    @Parameter(defaultValue = "1")
+    private int parallelShards = 1;
+
+    /**
+     * Maximum total size in megabytes of the classpath archives of idle file managers kept open for reuse
+     * by later executions in the same Maven session. The file managers are closed at the end of the
+     * session. Disabled with 0.
+     */
+    @Parameter(defaultValue = "0")
+    private int fileManagerPoolSize;
+
+    /**
+     * Compile the sources and the generated sources to the classes directory in the same javac task as the
+     * processing, instead of parsing the sources again in the compile phase. The input files are recorded
+     * in the status directory of the default execution of the maven-compiler-plugin, whose staleness check
+     * then finds the classes up to date, if it is configured with useIncrementalCompilation=false, or with
+     * the default incremental mode, if the sources are unchanged since the previous build. Only used for
+     * complete runs in the Maven JVM without parallelShards.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean processAndCompile;
+
+    @VisibleForTesting
+    @Parameter(defaultValue = "${project.build.outputDirectory}", readonly = true, required = true)
+    File classesDirectory;
+
+    @VisibleForTesting
+    @Parameter(defaultValue = "${project.build.testOutputDirectory}", readonly = true, required = true)
+    File testClassesDirectory;
+
+    /**
+     * Time in seconds after which the processing is cancelled and the execution fails, 0 for no timeout.
+     *
+     * <p>Processors are cancelled at the start of their next round and interrupted. A processor stuck within
+     * a round can't be stopped in the build JVM, its thread keeps running with its class loader and file
+     * manager until it returns. Use fork for processors which may not return, then the build stops
+     * waiting for the daemon after the timeout and the stuck processor only occupies the daemon JVM.</p>
+     */
+    @Parameter(defaultValue = "0")
+    private int timeout;
+
+    /**
+     * Time in seconds after which the current rounds and the stacks of the processing threads are logged,
+     * 0 to disable
+     */
+    @Parameter(defaultValue = "0")
+    private int watchdogThreshold;
+
+    /**
+     * Soft limit in megabytes of the heap in use after garbage collection. Processing fails as soon as javac
+     * reports progress beyond it, instead of thrashing until the heap is exhausted. 0 for no limit.
+     */
+    @Parameter(defaultValue = "0")
+    private int heapSoftLimit;
+
+    /**
+     * Maximum number of executions of the plugin running the processors concurrently in the Maven JVM, e.g.
+     * with the parallel builder, 0 for no limit. Executions are only governed, if this or
+     * {@code executionMemoryBudget} is set.
+     */
+    @Parameter(defaultValue = "0")
+    private int maxConcurrentExecutions;
+
+    /**
+     * Heap budget in megabytes for the estimated demand of executions running the processors concurrently
+     * in the Maven JVM, 0 for no budget. A single execution is always admitted. Half of the maximum heap
+     * size is a reasonable start for builds running out of memory with the parallel builder.
+     */
+    @Parameter(defaultValue = "0")
+    private int executionMemoryBudget;
+
+    /**
+     * Run the processors in a long-lived daemon JVM, which is shared by all builds with the same
+     * {@code forkJvmArgs} and plugin version
+     */
+    @Parameter(defaultValue = "false")
+    private boolean fork;
+
+    /**
+     * JVM arguments of the daemon, e.g. -Xmx2g
+     */
+    @Parameter
+    private List<String> forkJvmArgs;
+
+    /**
+     * Idle time in seconds after which the daemon exits
+     */
+    @Parameter(defaultValue = "10800")
+    private int forkIdleTimeout = 10800;
+
+    /**
+     * Directory for the port and log files of the daemons
+     */
+    @Parameter(defaultValue = "${user.home}/.m2/apt-daemon")
+    private File forkDirectory;
+
+    /**
+     * Write generated sources directly into the output directory instead of a temporary directory.
+     * Sources are buffered in memory and only written if their content changed. Sources written by a run
+     * that fails with an exception or times out are deleted again.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean directOutput;
+
+    /**
+     * Amount of threads comparing and moving generated files into the output directory. Uses the amount
+     * of available processors with 0 and syncs sequentially with 1.
+     */
+    @Parameter(defaultValue = "0")
+    private int syncParallelism;
+
+    /**
+     * Write a JSON report with timings and file counts of the execution to target/apt-metrics
+     */
+    @Parameter(defaultValue = "false")
+    private boolean metricsReport;
+
+    /**
+     * Create the compilation units lazily while javac reads them instead of up front, and clear the markers
+     * of source directories whose sources are all processed with one call per directory instead of per file
+     */
+    @Parameter(defaultValue = "false")
+    private boolean streamSources;
+
+    /**
+     * Answer the classpath lookups of javac from an index of the packages in the classpath archives, which is
+     * stored per classpath in target/apt-classpath, so that only the archives containing a requested package
+     * are opened. Not supported in combination with fork and ignored if the compiler options set the classpath.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean indexClasspath;
+
+    /**
+     * Record the parse time of each source, the durations of the processing rounds and the time spans of
+     * the compiler phases, and write them with the slowest sources to target/apt-profile. Not supported in
+     * combination with fork.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean profile;
+
+    /**
+     * Restore the generated sources from a cache shared by all builds on the machine, if the content of the
+     * sources and of the processor path, the processors and the options match a previous successful
+     * execution. Not used in incremental IDE builds. Diagnostics of restored executions are not reported.
+     */
+    @Parameter(defaultValue = "false")
+    private boolean cache;
+
+    /**
+     * Directory of the cache
+     */
+    @Parameter(defaultValue = "${user.home}/.m2/apt-cache")
+    private File cacheDirectory;
+
+    /**
+     * Maximum total size in megabytes of the cache entries, the least recently used entries are evicted first
+     */
+    @Parameter(defaultValue = "1024")
+    private int cacheSize = 1024;
+
+    /**
+     * Base URL of a remote HTTP build cache, which is looked up after the local cache. Entries are read with
+     * GET and written with PUT requests to the base URL followed by the key. Credentials of the URL are sent
+     * with basic authentication. Not used in incremental IDE builds.
+     */
+    @Parameter
+    private String remoteCacheUrl;
+
+    /**
+     * Store the generated sources of successful executions in the remote cache, usually only enabled on CI
+     */
+    @Parameter(defaultValue = "false")
+    private boolean remoteCachePush;
+
+    /**
+     * Connect and read timeout in milliseconds of the remote cache
+     */
+    @Parameter(defaultValue = "10000")
+    private int remoteCacheTimeout = 10000;
+
     @VisibleForTesting
     @Parameter(defaultValue = "${project.build.directory}", readonly = true, required = true)
     File projectBuildDirectory;
@@ -118,15 +383,23 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
     @Parameter(defaultValue = "${project.testClasspathElements}", readonly = true, required = true)
     List<String> testClasspathElements;
 
-    private String buildCompileClasspath() {
-        List<String> pathElements = null;
+    private List<String> buildClasspathElements() {
+        List<String> pathElements = new ArrayList<String>();
 
-        if (isForTest()) {
-            pathElements = testClasspathElements;
+        // the test classpath is a superset of the compile classpath
+        if (isForTest() || getTestOutputDirectory() != null) {
+            pathElements.addAll(testClasspathElements);
         } else {
-            pathElements = compileClasspathElements;
+            pathElements.addAll(compileClasspathElements);
         }
+        return pathElements;
+    }
 
+    /**
+     * Build the processor path, which is the project classpath followed by the plugin artifacts
+     */
+    private List<String> buildProcessorPathElements(List<String> classpathElements) {
+        List<String> pathElements = new ArrayList<String>(classpathElements);
         if (pluginArtifacts != null) {
             for (Artifact a : pluginArtifacts) {
                 if (a.getFile() != null) {
@@ -134,7 +407,10 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
                 }
             }
         }
+        return pathElements;
+    }
 
+    private String buildCompileClasspath(List<String> pathElements) {
         if (pathElements.isEmpty()) {
             return null;
         }
@@ -148,6 +424,21 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
         return result.toString();
     }
 
+    /**
+     * Check whether the origins of the files generated by all of the given processors can be tracked
+     */
+    private boolean isTracked(String processor) {
+        if (hasCustomProcessorPath()) {
+            return false;
+        }
+        for (String className : processor.split(",")) {
+            if (!TrackingProcessor.isTracked(className.trim(), trackedProcessors)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     private String buildProcessor() {
         if (processors != null) {
             StringBuilder result = new StringBuilder();
@@ -167,17 +458,28 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
         }
     }
 
-    private List<String> buildCompilerOptions(String processor, String compileClassPath, String outputDirectory) throws IOException {
+    @VisibleForTesting
+    List<String> buildCompilerOptions(String processor, String compileClassPath, String processorPath, String outputDirectory,
+            String classesDirectory) throws IOException {
         Map<String, String> compilerOpts = new LinkedHashMap<String, String>();
 
         // Default options
-        compilerOpts.put("cp", compileClassPath);
+        if (compileClassPath != null) {
+            compilerOpts.put("cp", compileClassPath);
+        }
+        if (processorPath != null) {
+            compilerOpts.put("processorpath", processorPath);
+        }
 
         if (sourceEncoding != null) {
             compilerOpts.put("encoding", sourceEncoding);
         }
 
-        compilerOpts.put("proc:only", null);
+        if (classesDirectory != null) {
+            compilerOpts.put("d", classesDirectory);
+        } else {
+            compilerOpts.put("proc:only", null);
+        }
         compilerOpts.put("processor", processor);
 
         if (options != null) {
@@ -225,85 +527,374 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
         return opts;
     }
 
-    private Set<File> filterFiles(boolean incremental, boolean hasDeletedFiles, Set<File> directories) {
-        String[] filters = ALL_JAVA_FILES_FILTER;
-        if (includes != null && !includes.isEmpty()) {
-            filters = includes.toArray(new String[includes.size()]);
-            for (int i = 0; i < filters.length; i++) {
-                filters[i] = filters[i].replace('.', '/') + JAVA_FILE_FILTER;
+    private static String[] buildFilters(Set<String> packages, String[] defaultFilters) {
+        if (packages == null || packages.isEmpty()) {
+            return defaultFilters;
+        }
+        String[] filters = new TreeSet<String>(packages).toArray(new String[packages.size()]);
+        for (int i = 0; i < filters.length; i++) {
+            filters[i] = filters[i].replace('.', '/') + JAVA_FILE_FILTER;
+        }
+        return filters;
+    }
+
+    @VisibleForTesting
+    SourceScanner.Result scanSources(Set<File> directories) throws IOException {
+        String[] includeFilters = buildFilters(includes, ALL_JAVA_FILES_FILTER);
+        String[] excludeFilters = buildFilters(excludes, new String[0]);
+        return new SourceScanner(buildContext, includeFilters, excludeFilters).scan(directories);
+    }
+
+    private String buildConfigurationFingerprint(List<String> processorPathElements, String processor) {
+        List<File> classpath = toFiles(processorPathElements);
+        // the classes directory of the execution holds the compiled fingerprinted sources
+        classpath.remove(getClassesDirectory());
+        return new Fingerprint()
+            .putString(processor)
+            .putString(sourceEncoding)
+            .putString(getOutputDirectory().getAbsolutePath())
+            .putStrings(includes)
+            .putStrings(excludes)
+            .putBoolean(showWarnings)
+            .putBoolean(processAndCompile)
+            .putMap(options)
+            .putMap(compilerOptions)
+            .putFiles(classpath)
+            .hash();
+    }
+
+    /**
+     * Build a content fingerprint of the inputs of the execution, which doesn't depend on absolute paths
+     * of sources and stamps of files
+     */
+    private String buildCacheKey(Set<File> files, Set<File> sourcePathFiles, List<String> processorPathElements,
+            String processor) throws IOException {
+        Fingerprint fingerprint = new Fingerprint()
+            .putString(processor)
+            .putString(sourceEncoding)
+            .putBoolean(showWarnings)
+            .putMap(options)
+            .putMap(compilerOptions);
+        List<File> classpath = toFiles(processorPathElements);
+        // the classes directory of the execution holds the compiled sources, which differ between builds
+        classpath.remove(getClassesDirectory());
+        for (File element : classpath) {
+            fingerprint.putContent(element);
+        }
+        List<File> sourceDirectories = new ArrayList<File>(getSourceDirectories());
+        Map<String, File> sources = new TreeMap<String, File>();
+        for (File file : sourcePathFiles) {
+            String path = relativize(sourceDirectories, file);
+            sources.put(path != null ? path.replace(File.separatorChar, '/') : file.getAbsolutePath(), file);
+        }
+        for (Map.Entry<String, File> entry : sources.entrySet()) {
+            fingerprint.putString(entry.getKey())
+                .putBoolean(files.contains(entry.getValue()))
+                .putContent(entry.getValue());
+        }
+        return fingerprint.hash();
+    }
+
+    /**
+     * Get the sources javac may read, which includes sources outside of the includes read through the
+     * sourcepath
+     */
+    private Set<File> getSourcePathFiles(Set<File> sourceDirectories, Set<File> files) throws IOException {
+        if (includes.isEmpty() && excludes.isEmpty()) {
+            return files;
+        }
+        return new SourceScanner(buildContext, ALL_JAVA_FILES_FILTER, new String[0]).scan(sourceDirectories).getFiles();
+    }
+
+    /**
+     * Restore the entry of the given key from the first cache containing it, failing caches are skipped
+     *
+     * @return name of the cache or null, if no cache contains the entry
+     */
+    private String restoreFromCache(Map<String, CacheStorage> caches, String key, File target) throws IOException {
+        for (Map.Entry<String, CacheStorage> entry : caches.entrySet()) {
+            try {
+                FileUtils.cleanDirectory(target);
+                if (!entry.getValue().restore(key, target)) {
+                    continue;
+                }
+            } catch (IOException e) {
+                getLog().warn("Unable to restore generated sources from " + entry.getKey() + " cache " + key, e);
+                continue;
+            }
+            for (Map.Entry<String, CacheStorage> other : caches.entrySet()) {
+                if (other == entry) {
+                    break;
+                }
+                try {
+                    other.getValue().store(key, target);
+                } catch (IOException e) {
+                    getLog().warn("Unable to store generated sources in " + other.getKey() + " cache " + key, e);
+                }
             }
+            return entry.getKey();
         }
+        return null;
+    }
 
-        Set<File> files = new HashSet<File>();
-        for (File directory : directories) {
-            // support for incremental build in m2e context
-            Scanner scanner = buildContext.newScanner(directory, hasDeletedFiles);
-            scanner.setIncludes(filters);
-            scanner.scan();
-            String[] includedFiles = scanner.getIncludedFiles();
+    /**
+     * Cancel the running tasks, processors stop at the start of their next round
+     */
+    private static void cancelTasks(ProcessingWatchdog watchdog, List<Future<Boolean>> futures) {
+        watchdog.cancel();
+        for (Future<Boolean> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    private ExecutionGovernor.Permit acquirePermit(long demand) throws MojoExecutionException {
+        int maxRunning = maxConcurrentExecutions > 0 ? maxConcurrentExecutions : Integer.MAX_VALUE;
+        long budget = executionMemoryBudget > 0 ? executionMemoryBudget * 1024L * 1024L : Long.MAX_VALUE;
+        try {
+            return ExecutionGovernor.acquire(maxRunning, budget, demand);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while waiting for other executions", e);
+        }
+    }
+
+    /**
+     * Create a new directory with a unique name in the build directory, executions sharing the build
+     * directory or starting at the same time get different directories
+     */
+    private File createTempDirectory(String prefix) throws IOException {
+        projectBuildDirectory.mkdirs();
+        return Files.createTempDirectory(projectBuildDirectory.toPath(), prefix).toFile();
+    }
+
+    /**
+     * Notify the build context of the given changed paths of the output directory
+     *
+     * @param paths relative paths with / as separator or null, to refresh the whole output directory
+     */
+    private void refreshOutputs(Collection<String> paths) {
+        if (paths == null) {
+            buildContext.refresh(getOutputDirectory());
+        } else {
+            for (String path : paths) {
+                buildContext.refresh(new File(getOutputDirectory(), path));
+            }
+        }
+    }
+
+    private int getSyncParallelism() {
+        return syncParallelism > 0 ? syncParallelism : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Processors of a processorpath given in the compiler options are instantiated by javac
+     */
+    private boolean hasCustomProcessorPath() {
+        return compilerOptions != null && compilerOptions.containsKey("processorpath");
+    }
 
-            if (includedFiles != null) {
-                for (String includedFile : includedFiles) {
-                    files.add(new File(scanner.getBasedir(), includedFile));
+    private static boolean overridesLocations(Map<String, String> compilerOptions) {
+        if (compilerOptions != null) {
+            for (String option : LOCATION_OPTIONS) {
+                if (compilerOptions.containsKey(option)) {
+                    return true;
                 }
             }
         }
+        return false;
+    }
+
+    private void setLocations(StandardJavaFileManager fileManager, List<String> classpathElements,
+            List<String> processorPathElements, File outputDirectory, File classesDirectory) throws IOException {
+        fileManager.setLocation(StandardLocation.CLASS_PATH, toFiles(classpathElements));
+        fileManager.setLocation(StandardLocation.ANNOTATION_PROCESSOR_PATH, toFiles(processorPathElements));
+        fileManager.setLocation(StandardLocation.SOURCE_PATH, getSourceDirectories());
+        fileManager.setLocation(StandardLocation.SOURCE_OUTPUT, Collections.singletonList(outputDirectory));
+        fileManager.setLocation(StandardLocation.CLASS_OUTPUT,
+                classesDirectory != null ? Collections.singletonList(classesDirectory) : null);
+    }
+
+    private File getClassesDirectory() {
+        return isForTest() ? testClassesDirectory : classesDirectory;
+    }
+
+    /**
+     * Record the given input files in the status of the default execution of the maven-compiler-plugin,
+     * which compares them with the input files of its next run
+     */
+    private void writeCompilerStatus(Collection<File> inputFiles) throws IOException {
+        String execution = isForTest() ? "testCompile/default-testCompile" : "compile/default-compile";
+        File statusDirectory = new File(projectBuildDirectory, "maven-status/maven-compiler-plugin/" + execution);
+        statusDirectory.mkdirs();
+        List<String> paths = new ArrayList<String>(inputFiles.size());
+        for (File file : inputFiles) {
+            paths.add(file.getAbsolutePath());
+        }
+        Files.write(new File(statusDirectory, "inputFiles.lst").toPath(), paths, Charsets.UTF_8);
+    }
+
+    private static List<File> toFiles(List<String> paths) {
+        List<File> files = new ArrayList<File>(paths.size());
+        for (String path : paths) {
+            files.add(new File(path));
+        }
         return files;
     }
 
-    private boolean containsDeletedFiles(Set<File> directories) {
-        String[] filters = ALL_JAVA_FILES_FILTER;
-        if (includes != null && !includes.isEmpty()) {
-            filters = includes.toArray(new String[includes.size()]);
-            for (int i = 0; i < filters.length; i++) {
-                filters[i] = filters[i].replace('.', '/') + JAVA_FILE_FILTER;
+    private static String relativize(List<File> directories, File file) {
+        String filePath = FilenameUtils.normalize(file.getAbsolutePath());
+        for (File directory : directories) {
+            String directoryPath = FilenameUtils.normalize(directory.getAbsolutePath());
+            if (filePath.startsWith(directoryPath + File.separator)) {
+                return filePath.substring(directoryPath.length() + 1);
             }
         }
-        for (File directory : directories) {
-            Scanner scanner = buildContext.newDeleteScanner(directory);
-            scanner.setIncludes(filters);
-            scanner.scan();
-            String[] includedFiles = scanner.getIncludedFiles();
-            if (includedFiles != null && includedFiles.length > 0) {
-                return true;
+        return null;
+    }
+
+    /**
+     * Partition the given files by package into at most the given amount of shards of similar size
+     */
+    private static List<Set<File>> partitionByPackage(Set<File> files, int shardCount) {
+        Map<File, List<File>> packages = new HashMap<File, List<File>>();
+        for (File file : files) {
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (!packages.containsKey(directory)) {
+                packages.put(directory, new ArrayList<File>());
             }
+            packages.get(directory).add(file);
         }
-        return false;
+        List<List<File>> sorted = new ArrayList<List<File>>(packages.values());
+        Collections.sort(sorted, new Comparator<List<File>>() {
+            @Override
+            public int compare(List<File> o1, List<File> o2) {
+                return o2.size() - o1.size();
+            }
+        });
+
+        List<Set<File>> shards = new ArrayList<Set<File>>();
+        for (int i = 0; i < Math.min(shardCount, sorted.size()); i++) {
+            shards.add(new HashSet<File>());
+        }
+        for (List<File> packageFiles : sorted) {
+            Set<File> smallest = shards.get(0);
+            for (Set<File> shard : shards) {
+                if (shard.size() < smallest.size()) {
+                    smallest = shard;
+                }
+            }
+            smallest.addAll(packageFiles);
+        }
+        return shards;
     }
 
     /**
-     * Add messages through the buildContext:
-     * <ul>
-     *   <li>cli build creates log output</li>
-     *   <li>m2e build creates markers for eclipse</li>
-     * </ul>
-     * @param diagnostics
-     * @param tmpFileToOutputFile
-     */
-    private void processDiagnostics(final List<Diagnostic<? extends JavaFileObject>> diagnostics, Function<File, File> tmpFileToOutputFile) {
-        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics) {
-            JavaFileObject javaFileObject = diagnostic.getSource();
-            if (javaFileObject != null) { // message was created without element parameter
-                File file = tmpFileToOutputFile.apply(new File(javaFileObject.toUri().getPath()));
-                Kind kind = diagnostic.getKind();
-                int lineNumber = (int) diagnostic.getLineNumber();
-                int columnNumber = (int) diagnostic.getColumnNumber();
-                String message = diagnostic.getMessage(Locale.getDefault());
-                switch (kind) {
-                case ERROR:
-                    buildContext.addMessage(file, lineNumber, columnNumber, message, BuildContext.SEVERITY_ERROR, null);
-                    break;
-                case WARNING:
-                case MANDATORY_WARNING:
-                    buildContext.addMessage(file, lineNumber, columnNumber, message, BuildContext.SEVERITY_WARNING, null);
-                    break;
-                case NOTE:
-                case OTHER:
-                default:
-                    break;
+     * Remove the messages of the given sources, with one call per directory for the directories of which
+     * all scanned sources are given
+     */
+    private void removeMessages(Set<File> sources, Map<File, Integer> scannedPerDirectory) {
+        Map<File, List<File>> directories = new HashMap<File, List<File>>();
+        for (File file : sources) {
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (!directories.containsKey(directory)) {
+                directories.put(directory, new ArrayList<File>());
+            }
+            directories.get(directory).add(file);
+        }
+        for (Map.Entry<File, List<File>> entry : directories.entrySet()) {
+            if (entry.getValue().size() == scannedPerDirectory.get(entry.getKey())) {
+                buildContext.removeMessages(entry.getKey());
+            } else {
+                for (File file : entry.getValue()) {
+                    buildContext.removeMessages(file.getAbsoluteFile());
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the files generated into the given temporary directories to the dependency index. Origins which are
+     * themselves generated are replaced by their own origins. The sources the origins depend on are added
+     * as origins, so that the generated files are regenerated when these change.
+     */
+    private void updateDependencyIndex(DependencyIndex index, Map<File, Set<File>> generatedFiles,
+            Map<File, Set<File>> dependencies, List<File> tempDirectories) {
+        for (Map.Entry<File, Set<File>> entry : generatedFiles.entrySet()) {
+            String generated = relativize(tempDirectories, entry.getKey());
+            if (generated == null) {
+                continue;
+            }
+            Set<File> origins = resolveOrigins(entry.getValue(), generatedFiles, tempDirectories);
+            Set<String> paths = new HashSet<String>();
+            for (File origin : origins) {
+                paths.add(origin.getAbsolutePath());
+            }
+            if (!paths.isEmpty() && dependencies.containsKey(entry.getKey())) {
+                for (File dependency : dependencies.get(entry.getKey())) {
+                    if (relativize(tempDirectories, dependency) == null) {
+                        paths.add(dependency.getAbsolutePath());
+                    }
                 }
             }
+            index.putOutput(generated, paths);
+        }
+    }
+
+    /**
+     * Resolve the given origins of a generated file to source files, origins which are themselves generated
+     * are replaced by their own origins
+     *
+     * @return source files or an empty set, if some origins are unknown
+     */
+    private static Set<File> resolveOrigins(Set<File> origins, Map<File, Set<File>> generatedFiles, List<File> tempDirectories) {
+        Set<File> sources = new HashSet<File>();
+        Set<File> visited = new HashSet<File>();
+        Deque<File> queue = new ArrayDeque<File>(origins);
+        while (!queue.isEmpty()) {
+            File origin = queue.pop();
+            if (!visited.add(origin)) {
+                continue;
+            } else if (relativize(tempDirectories, origin) == null) {
+                sources.add(origin);
+            } else if (generatedFiles.containsKey(origin) && !generatedFiles.get(origin).isEmpty()) {
+                queue.addAll(generatedFiles.get(origin));
+            } else {
+                // generated origin with unknown origins
+                return Collections.emptySet();
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Move the generated files which originate only from test sources from the given directory into the
+     * given test directory, files with unknown origins stay
+     *
+     * @return amount of moved files
+     */
+    private int routeTestOutputs(Map<File, Set<File>> generatedFiles, List<File> tempDirectories, File directory,
+            File testDirectory) throws IOException {
+        List<File> testSourceDirectories = new ArrayList<File>(getSourceDirectories(testCompileSourceRoots));
+        int moved = 0;
+        for (Map.Entry<File, Set<File>> entry : generatedFiles.entrySet()) {
+            String generated = relativize(tempDirectories, entry.getKey());
+            Set<File> origins = resolveOrigins(entry.getValue(), generatedFiles, tempDirectories);
+            if (generated == null || origins.isEmpty()) {
+                continue;
+            }
+            boolean test = true;
+            for (File origin : origins) {
+                test &= relativize(testSourceDirectories, origin) != null;
+            }
+            File file = new File(directory, generated);
+            if (test && file.exists()) {
+                File target = new File(testDirectory, generated);
+                target.getParentFile().mkdirs();
+                Files.move(file.toPath(), target.toPath());
+                moved++;
+            }
         }
+        return moved;
     }
 
     public void execute() throws MojoExecutionException {
@@ -313,8 +904,16 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
         if ("true".equals(System.getProperty("maven.apt.skip"))) {
             return;
         }
+        File testOutputDirectory = getTestOutputDirectory();
+        if (testOutputDirectory != null) {
+            checkCombinedOptions();
+        }
+        if (session != null) {
+            SessionCleanup.register(session);
+        }
 
-        if (!getOutputDirectory().exists()) {
+        boolean outputDirectoryExists = getOutputDirectory().exists();
+        if (!outputDirectoryExists) {
             getOutputDirectory().mkdirs();
         }
 
@@ -324,12 +923,29 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
         } else {
             project.addCompileSourceRoot(getOutputDirectory().getAbsolutePath());
         }
+        if (testOutputDirectory != null) {
+            testOutputDirectory.mkdirs();
+            project.addTestCompileSourceRoot(testOutputDirectory.getAbsolutePath());
+        }
 
         Set<File> sourceDirectories = getSourceDirectories();
 
         getLog().debug("Using build context: " + buildContext);
 
-        StandardJavaFileManager fileManager = null;
+        List<StandardJavaFileManager> fileManagers = new ArrayList<StandardJavaFileManager>();
+        List<IndexedFileManager> indexedFileManagers = new ArrayList<IndexedFileManager>();
+        String fileManagerKey = null;
+        long fileManagerWeight = 0;
+        ExecutionGovernor.Permit permit = null;
+
+        ExecutionMetrics metrics = new ExecutionMetrics();
+        metrics.setProperty("execution", isForTest() ? "test" : testOutputDirectory != null ? "all" : "main");
+        metrics.setProperty("outputDirectory", getOutputDirectory().getAbsolutePath());
+        metrics.setProperty("result", "error");
+        if (metricsReport) {
+            metrics.resetHeapPeak();
+        }
+        long time = System.nanoTime();
 
         try {
             JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
@@ -339,89 +955,616 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
             }
 
             boolean incremental = buildContext.isIncremental();
-            boolean hasDeletedFiles = containsDeletedFiles(sourceDirectories);
-            Set<File> files = filterFiles(incremental, hasDeletedFiles, sourceDirectories);
+            SourceScanner.Result scan = scanSources(sourceDirectories);
+            boolean hasDeletedFiles = scan.hasDeletedFiles();
+            Set<File> files = scan.getFiles();
+            time = metrics.addTime("scan", time);
+            metrics.setCount("filesScanned", files.size());
             if (files.isEmpty()) {
                 getLog().debug("No Java sources found (skipping)");
+                metrics.setProperty("result", "skipped");
                 return;
             }
 
-            fileManager = compiler.getStandardFileManager(null, null, null);
-            Iterable<? extends JavaFileObject> compilationUnits1 = fileManager.getJavaFileObjectsFromFiles(files);
-            // clean all markers
-            for (JavaFileObject javaFileObject : compilationUnits1) {
-                buildContext.removeMessages(new File(javaFileObject.toUri().getPath()));
+            List<String> classpathElements = buildClasspathElements();
+            String compileClassPath = buildCompileClasspath(classpathElements);
+            List<String> processorPathElements = buildProcessorPathElements(classpathElements);
+            String processorPath = buildCompileClasspath(processorPathElements);
+            time = metrics.addTime("classpath", time);
+
+            String processor = buildProcessor();
+
+            // fingerprints and dependency indexes are only used outside of m2e, since m2e provides its own deltas
+            String configuration = null;
+            if ((skipUnchanged || incrementalProcessing) && !incremental) {
+                configuration = buildConfigurationFingerprint(processorPathElements, processor);
             }
 
-            String compileClassPath = buildCompileClasspath();
+            String fingerprint = null;
+            File fingerprintFile = getStateFile("fingerprint");
+            if (skipUnchanged && !incremental) {
+                fingerprint = new Fingerprint().putString(configuration)
+                        .putFiles(getSourcePathFiles(sourceDirectories, files)).hash();
+                if (outputDirectoryExists && Fingerprint.matches(fingerprint, fingerprintFile)) {
+                    getLog().info("Sources and configuration unchanged since last run (skipping)");
+                    metrics.setProperty("result", "skipped");
+                    return;
+                }
+                fingerprintFile.delete();
+            }
 
-            String processor = buildProcessor();
+            // local cache first, restored remote entries are added to the local cache
+            Map<String, CacheStorage> caches = new LinkedHashMap<String, CacheStorage>();
+            String cacheKey = null;
+            if (!incremental) {
+                if (cache) {
+                    caches.put("local", new BuildCache(cacheDirectory, cacheSize * 1024L * 1024L));
+                }
+                if (StringUtils.isNotEmpty(remoteCacheUrl)) {
+                    caches.put("remote", new HttpCacheStorage(remoteCacheUrl, remoteCacheTimeout));
+                }
+            }
+            if (!caches.isEmpty()) {
+                cacheKey = buildCacheKey(files, getSourcePathFiles(sourceDirectories, files), processorPathElements,
+                        processor);
+                File restoreDirectory = createTempDirectory("apt-cache");
+                try {
+                    String restored = restoreFromCache(caches, cacheKey, restoreDirectory);
+                    if (restored != null) {
+                        FileSync.Result result = FileSync.syncFiles(true, restoreDirectory, getOutputDirectory(),
+                                getStateFile("manifest"), getSyncParallelism());
+                        // the dependencies of the restored files are unknown
+                        getStateFile("dependencies").delete();
+                        if (fingerprint != null) {
+                            Fingerprint.store(fingerprint, fingerprintFile);
+                        }
+                        refreshOutputs(result.getChanges());
+                        getLog().info("Restored generated sources from " + restored + " cache " + cacheKey);
+                        metrics.setCount("filesGenerated", result.getCopied() + result.getUnchanged());
+                        metrics.setCount("filesUnchanged", result.getUnchanged());
+                        metrics.setCount("filesDeleted", result.getDeleted());
+                        metrics.addTime("cache", time);
+                        metrics.setProperty("result", "cached");
+                        metrics.setProperty("cache", restored);
+                        return;
+                    }
+                } finally {
+                    FileUtils.deleteDirectory(restoreDirectory);
+                }
+                time = metrics.addTime("cache", time);
+            }
+
+            if (fork && incrementalProcessing) {
+                getLog().warn("incrementalProcessing is not supported in combination with fork (ignoring)");
+            }
+            if (fork && profile) {
+                getLog().warn("profile is not supported in combination with fork (ignoring)");
+            }
+            if (fork && directOutput) {
+                getLog().warn("directOutput is not supported in combination with fork (ignoring)");
+            }
+            boolean direct = directOutput && !fork;
+
+            boolean tracked = isTracked(processor);
+            if (incrementalProcessing && !tracked) {
+                getLog().warn("incrementalProcessing is only supported for processors listed in trackedProcessors "
+                        + "without a processorpath in compilerOptions (ignoring)");
+            }
+            if (testOutputDirectory != null && !tracked) {
+                getLog().warn("Origins of generated files are only tracked for processors listed in trackedProcessors "
+                        + "without a processorpath in compilerOptions, all generated files are written to "
+                        + getOutputDirectory());
+            }
+
+            DependencyIndex index = null;
+            File indexFile = getStateFile("dependencies");
+            Set<File> units = files;
+            Set<String> staleOutputs = Collections.emptySet();
+            if (incrementalProcessing && tracked && !fork && !incremental) {
+                DependencyIndex previous = DependencyIndex.load(indexFile);
+                indexFile.delete();
+                if (previous != null && outputDirectoryExists && previous.isComplete()
+                        && previous.getConfiguration().equals(configuration)) {
+                    Set<String> changed = previous.getChangedSources(files);
+                    staleOutputs = previous.getOutputs(changed);
+                    Set<String> dependents = previous.getOrigins(staleOutputs);
+                    units = new HashSet<File>();
+                    for (File file : files) {
+                        String path = file.getAbsolutePath();
+                        if (changed.contains(path) || dependents.contains(path)) {
+                            units.add(file);
+                        }
+                    }
+                    previous.removeOutputs(staleOutputs);
+                    index = previous;
+                    getLog().info("Processing " + units.size() + " of " + files.size() + " sources");
+                } else {
+                    index = new DependencyIndex(configuration);
+                }
+
+                if (units.isEmpty()) {
+                    metrics.setCount("filesDeleted", FileSync.deleteFiles(getOutputDirectory(), staleOutputs));
+                    index.setSources(files);
+                    index.store(indexFile);
+                    refreshOutputs(staleOutputs);
+                    metrics.setProperty("result", "skipped");
+                    return;
+                }
+            }
+
+            if (fileManagerPoolSize > 0 && !fork && !overridesLocations(compilerOptions)) {
+                fileManagerKey = FileManagerPool.getKey(classpathElements, sourceEncoding);
+                fileManagerWeight = FileManagerPool.getWeight(classpathElements);
+            }
+
+            metrics.setCount("unitsProcessed", units.size());
+            time = metrics.addTime("state", time);
+
+            if (fork && indexClasspath) {
+                getLog().warn("indexClasspath is not supported in combination with fork (ignoring)");
+            }
+            ClasspathIndex classpathIndex = null;
+            if (indexClasspath && !fork && !overridesLocations(compilerOptions)) {
+                classpathIndex = ClasspathIndex.get(new File(projectBuildDirectory, CLASSPATH_INDEX_DIRECTORY), getExecutionId(),
+                        classpathElements);
+                // the classpath is passed to the file manager instead
+                compileClassPath = null;
+                time = metrics.addTime("classpath", time);
+            }
 
-            File tempDirectory = new File(projectBuildDirectory, "apt" + System.currentTimeMillis());
-            tempDirectory.mkdirs();
-            String outputDirectory = tempDirectory.getAbsolutePath();
+            List<Set<File>> shards = Collections.singletonList(units);
+            if (parallelShards > 1 && units.size() > 1) {
+                shards = partitionByPackage(units, parallelShards);
+                getLog().info("Processing " + units.size() + " sources in " + shards.size() + " shards");
+            }
 
-            List<String> compilerOptions = buildCompilerOptions(processor, compileClassPath, outputDirectory);
+            if (maxConcurrentExecutions > 0 || executionMemoryBudget > 0) {
+                // forked executions use the heap of the daemon
+                permit = acquirePermit(fork ? 0 : ExecutionGovernor.getDemand(units, classpathElements));
+            }
+            time = metrics.addTime("wait", time);
+
+            // classes can only be compiled, if all sources are part of the task
+            File compileDirectory = null;
+            if (processAndCompile && fork) {
+                getLog().warn("processAndCompile is not supported in combination with fork (ignoring)");
+            } else if (processAndCompile && (incremental || units != files || shards.size() > 1)) {
+                getLog().info("Sources are processed only, since not all sources are part of the run");
+            } else if (processAndCompile) {
+                compileDirectory = getClassesDirectory();
+                compileDirectory.mkdirs();
+            }
+
+            // in direct mode all shards write into the output directory
+            File tempDirectory = direct ? null : createTempDirectory("apt");
+            final List<File> tempDirectories = new ArrayList<File>(shards.size());
+            // paths of the output directory changed by this execution, null if unknown
+            Set<String> changedOutputs = null;
+            if (direct) {
+                tempDirectories.addAll(Collections.nCopies(shards.size(), getOutputDirectory()));
+            } else if (shards.size() > 1) {
+                tempDirectory.mkdirs();
+                for (int i = 0; i < shards.size(); i++) {
+                    tempDirectories.add(new File(tempDirectory.getPath() + "-" + i));
+                }
+            } else {
+                tempDirectory.mkdirs();
+                tempDirectories.add(tempDirectory);
+            }
 
-            Writer out = null;
+            RingBufferWriter out = null;
             if (logOnlyOnError) {
-                out = new StringWriter();
+                out = new RingBufferWriter(ERROR_OUTPUT_LIMIT);
             }
-            ExecutorService executor = Executors.newSingleThreadExecutor();
-            DiagnosticCollector<JavaFileObject> diagnosticCollector = new DiagnosticCollector<JavaFileObject>();
+            ProcessingWatchdog watchdog = new ProcessingWatchdog("apt-" + getExecutionId());
+            ExecutorService executor = Executors.newFixedThreadPool(shards.size(), watchdog);
+            StreamingDiagnosticListener diagnosticListener = new StreamingDiagnosticListener(buildContext,
+                    new Function<File, File>() {
+                @Override
+                public File apply(final File input) {
+                    final String inputAbsolutePath = FilenameUtils.normalize(input.getAbsolutePath());
+                    for (File directory : tempDirectories) {
+                        String tempDirectoryName = FilenameUtils.normalize(directory.getAbsolutePath());
+                        if (inputAbsolutePath.startsWith(tempDirectoryName)) {
+                            return new File(getOutputDirectory(), inputAbsolutePath.replace(tempDirectoryName, ""));
+                        }
+                    }
+                    return input;
+                }
+            }, DIAGNOSTIC_REPEAT_LIMIT);
+            Map<File, Set<File>> generatedFiles = Maps.newConcurrentMap();
+            Map<File, Set<File>> generatedDependencies = Maps.newConcurrentMap();
+            Set<String> conflicts = Collections.synchronizedSet(new TreeSet<String>());
+            ConcurrentMap<File, HashCode> writtenFiles = Maps.newConcurrentMap();
+            List<ChangeDetectingFileManager> changeDetectingFileManagers = new ArrayList<ChangeDetectingFileManager>();
+            Charset charset = sourceEncoding != null ? Charset.forName(sourceEncoding) : Charset.defaultCharset();
+            ProcessorLoader processorLoader = null;
+            TaskProfiler profiler = profile && !fork ? new TaskProfiler() : null;
+            if (fork && heapSoftLimit > 0) {
+                getLog().warn("heapSoftLimit is not supported in combination with fork (ignoring)");
+            }
+            // round memory is sampled for the debug log, the metrics report and the limit
+            MemoryMonitor memoryMonitor = !fork ? new MemoryMonitor(heapSoftLimit * 1024L * 1024L) : null;
+            Boolean rv = null;
+            boolean completed = false;
             try {
-                CompilationTask task = compiler.getTask(out, fileManager, diagnosticCollector, compilerOptions, null, compilationUnits1);
-                Future<Boolean> future = executor.submit(task);
-                Boolean rv = future.get();
+                if (!fork && !hasCustomProcessorPath()) {
+                    // same parent as for javac's own processor class loader
+                    processorLoader = new ProcessorLoader(compiler.getClass().getClassLoader(), pluginArtifacts,
+                            processorPathElements);
+                }
+                DaemonClient daemonClient = null;
+                if (fork) {
+                    daemonClient = new DaemonClient(forkDirectory, forkJvmArgs, forkIdleTimeout, timeout * 1000);
+                }
+                // incremental scans without deletions hold only the changed sources of a directory
+                Map<File, Integer> scannedPerDirectory = null;
+                if (streamSources && (hasDeletedFiles || !incremental)) {
+                    scannedPerDirectory = new HashMap<File, Integer>();
+                    for (File file : files) {
+                        File directory = file.getAbsoluteFile().getParentFile();
+                        Integer count = scannedPerDirectory.get(directory);
+                        scannedPerDirectory.put(directory, count != null ? count + 1 : 1);
+                    }
+                }
+                // clean all markers before any task reports new ones
+                for (int i = 0; i < shards.size(); i++) {
+                    if (scannedPerDirectory != null) {
+                        removeMessages(shards.get(i), scannedPerDirectory);
+                    } else {
+                        for (File file : shards.get(i)) {
+                            buildContext.removeMessages(file.getAbsoluteFile());
+                        }
+                    }
+                }
+                List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(shards.size());
+                for (int i = 0; i < shards.size(); i++) {
+
+                    File shardDirectory = tempDirectories.get(i);
+                    shardDirectory.mkdirs();
+                    List<String> compilerOptions = buildCompilerOptions(processor, compileClassPath, processorPath,
+                            shardDirectory.getAbsolutePath(), compileDirectory != null ? compileDirectory.getAbsolutePath() : null);
+
+                    if (daemonClient != null) {
+                        futures.add(executor.submit(daemonClient.newTask(compilerOptions, shards.get(i), diagnosticListener, out)));
+                        continue;
+                    }
+
+                    // file managers are not thread-safe, so each shard gets its own
+                    StandardJavaFileManager fileManager = fileManagerKey != null
+                            ? FileManagerPool.acquire(compiler, fileManagerKey)
+                            : compiler.getStandardFileManager(null, null, null);
+                    fileManagers.add(fileManager);
+                    if (fileManagerKey != null || classpathIndex != null) {
+                        // reused and wrapped file managers don't pick up location options on all JDKs
+                        setLocations(fileManager, classpathElements, processorPathElements, tempDirectories.get(i),
+                                compileDirectory);
+                    }
+                    JavaFileManager taskFileManager = fileManager;
+                    if (classpathIndex != null) {
+                        IndexedFileManager indexedFileManager = new IndexedFileManager(fileManager, toFiles(classpathElements),
+                                classpathIndex, charset);
+                        indexedFileManagers.add(indexedFileManager);
+                        taskFileManager = indexedFileManager;
+                    }
+                    if (direct) {
+                        ChangeDetectingFileManager changeDetectingFileManager = new ChangeDetectingFileManager(taskFileManager,
+                                getOutputDirectory(), charset, writtenFiles, conflicts);
+                        changeDetectingFileManagers.add(changeDetectingFileManager);
+                        taskFileManager = changeDetectingFileManager;
+                    }
+                    Iterable<? extends JavaFileObject> compilationUnits1;
+                    if (streamSources) {
+                        final StandardJavaFileManager shardFileManager = fileManager;
+                        compilationUnits1 = Iterables.transform(shards.get(i), new Function<File, JavaFileObject>() {
+                            @Override
+                            public JavaFileObject apply(File file) {
+                                return shardFileManager.getJavaFileObjects(file).iterator().next();
+                            }
+                        });
+                    } else {
+                        compilationUnits1 = fileManager.getJavaFileObjectsFromFiles(shards.get(i));
+                    }
+                    CompilationTask task = compiler.getTask(out, taskFileManager, diagnosticListener, compilerOptions, null, compilationUnits1);
+                    if (profiler != null && !profiler.attach(task)) {
+                        getLog().warn("Unable to profile " + task.getClass().getName());
+                    }
+                    if (memoryMonitor != null && !memoryMonitor.attach(task)) {
+                        getLog().warn("Unable to monitor memory of " + task.getClass().getName());
+                    }
+                    if (processorLoader != null) {
+                        List<Processor> processors = new ArrayList<Processor>();
+                        for (Processor p : processorLoader.load(processor)) {
+                            // origins are needed for the routing of test outputs as well
+                            if (tracked && (index != null || testOutputDirectory != null)) {
+                                p = new TrackingProcessor(p, generatedFiles, generatedDependencies);
+                            }
+                            if (metricsReport) {
+                                p = new TimingProcessor(p, metrics);
+                            }
+                            processors.add(watchdog.watch(p));
+                        }
+                        task.setProcessors(processors);
+                    }
+                    futures.add(executor.submit(task));
+                }
+                time = metrics.addTime("setup", time);
+                rv = Boolean.TRUE;
+                long start = System.nanoTime();
+                long deadline = timeout > 0 ? start + TimeUnit.SECONDS.toNanos(timeout) : Long.MAX_VALUE;
+                long watchdogDeadline = watchdogThreshold > 0 ? start + TimeUnit.SECONDS.toNanos(watchdogThreshold) : Long.MAX_VALUE;
+                for (Future<Boolean> future : futures) {
+                    Boolean result = null;
+                    boolean done = false;
+                    while (!done) {
+                        long now = System.nanoTime();
+                        if (now >= deadline) {
+                            getLog().error("Processing timed out after " + timeout + " seconds\n" + watchdog.dump());
+                            cancelTasks(watchdog, futures);
+                            // file managers may still be used by runaway processors
+                            fileManagerKey = null;
+                            metrics.setProperty("result", "timeout");
+                            throw new MojoExecutionException("Processing timed out after " + timeout + " seconds");
+                        } else if (now >= watchdogDeadline) {
+                            getLog().warn("Processing is running for more than " + watchdogThreshold + " seconds\n"
+                                    + watchdog.dump());
+                            watchdogDeadline = Long.MAX_VALUE;
+                        }
+                        long next = Math.min(deadline, watchdogDeadline);
+                        try {
+                            result = next == Long.MAX_VALUE ? future.get() : future.get(next - now, TimeUnit.NANOSECONDS);
+                            done = true;
+                        } catch (TimeoutException e) {
+                            // deadlines are checked again
+                        } catch (ExecutionException e) {
+                            if (memoryMonitor != null && memoryMonitor.getLimitExceeded() != null) {
+                                cancelTasks(watchdog, futures);
+                                fileManagerKey = null;
+                                metrics.setProperty("result", "heapLimit");
+                                throw new MojoExecutionException(memoryMonitor.getLimitExceeded());
+                            }
+                            throw e;
+                        }
+                    }
+                    if (!Boolean.TRUE.equals(result)) {
+                        rv = Boolean.FALSE;
+                    }
+                }
+                completed = true;
+                time = metrics.addTime("processing", time);
 
                 if (Boolean.FALSE.equals(rv) && logOnlyOnError) {
                     getLog().error(out.toString());
                 }
             } finally {
                 executor.shutdown();
-                boolean deleteFilesInOutputDirectory = hasDeletedFiles || !incremental;
-                FileSync.syncFiles(deleteFilesInOutputDirectory, tempDirectory, getOutputDirectory());
-                FileUtils.deleteDirectory(tempDirectory);
-
-                final String tempDirectoryName = FilenameUtils.normalize(tempDirectory.getAbsolutePath());
-                processDiagnostics(diagnosticCollector.getDiagnostics(), new Function<File, File>() {
-                    @Override
-                    public File apply(final File input) {
-                        final String inputAbsolutePath = FilenameUtils.normalize(input.getAbsolutePath());
-                        if (inputAbsolutePath.startsWith(tempDirectoryName)) {
-                            return new File(getOutputDirectory(), inputAbsolutePath.replace(tempDirectoryName, ""));
+                if (processorLoader != null) {
+                    processorLoader.close();
+                }
+                time = System.nanoTime();
+                int deleted = 0;
+                changedOutputs = new TreeSet<String>();
+                // partial outputs of failed, cancelled or timed out tasks are discarded
+                if (completed) {
+                    if (shards.size() > 1 && !direct) {
+                        for (File shardDirectory : tempDirectories) {
+                            if (shardDirectory.exists()) {
+                                conflicts.addAll(FileSync.mergeFiles(shardDirectory, tempDirectory));
+                            }
+                        }
+                    }
+                    // partial runs must keep the outputs of the sources that were not processed, and once a
+                    // manifest exists only the outputs of the previous sync are deleted, not other files
+                    boolean deleteFilesInOutputDirectory = (hasDeletedFiles || !incremental) && units == files;
+                    File manifestFile = getStateFile("manifest");
+                    if (direct) {
+                        // files written directly are not covered by the manifest
+                        manifestFile.delete();
+                        if (deleteFilesInOutputDirectory) {
+                            deleted += FileSync.retainFiles(getOutputDirectory(), writtenFiles.keySet());
+                        }
+                        int unchanged = 0;
+                        for (ChangeDetectingFileManager changeDetectingFileManager : changeDetectingFileManagers) {
+                            unchanged += changeDetectingFileManager.getUnchanged();
                         }
-                        return input;
+                        metrics.setCount("filesGenerated", writtenFiles.size());
+                        metrics.setCount("filesUnchanged", unchanged);
+                        // the written files are not tracked by path
+                        changedOutputs = null;
+                    } else if (testOutputDirectory != null) {
+                        File testTempDirectory = createTempDirectory("apt-test");
+                        try {
+                            int routed = routeTestOutputs(generatedFiles, tempDirectories, tempDirectory, testTempDirectory);
+                            FileSync.Result result = FileSync.syncFiles(deleteFilesInOutputDirectory, tempDirectory,
+                                    getOutputDirectory(), manifestFile, getSyncParallelism());
+                            FileSync.Result testResult = FileSync.syncFiles(deleteFilesInOutputDirectory, testTempDirectory,
+                                    testOutputDirectory, getStateFile("test-manifest"), getSyncParallelism());
+                            changedOutputs.addAll(result.getChanges());
+                            deleted += result.getDeleted() + testResult.getDeleted();
+                            metrics.setCount("filesGenerated", result.getCopied() + result.getUnchanged()
+                                    + testResult.getCopied() + testResult.getUnchanged());
+                            metrics.setCount("filesUnchanged", result.getUnchanged() + testResult.getUnchanged());
+                            metrics.setCount("filesRoutedToTest", routed);
+                            for (String path : testResult.getChanges()) {
+                                buildContext.refresh(new File(testOutputDirectory, path));
+                            }
+                        } finally {
+                            FileUtils.deleteDirectory(testTempDirectory);
+                        }
+                    } else {
+                        FileSync.Result result = FileSync.syncFiles(deleteFilesInOutputDirectory, tempDirectory,
+                                getOutputDirectory(), manifestFile, getSyncParallelism());
+                        changedOutputs.addAll(result.getChanges());
+                        deleted += result.getDeleted();
+                        metrics.setCount("filesGenerated", result.getCopied() + result.getUnchanged());
+                        metrics.setCount("filesUnchanged", result.getUnchanged());
+                    }
+                    if (index != null) {
+                        updateDependencyIndex(index, generatedFiles, generatedDependencies, tempDirectories);
+                        // delete the outputs whose inputs disappeared
+                        Set<String> removedOutputs = new HashSet<String>();
+                        for (String output : staleOutputs) {
+                            if (!index.hasOutput(output)) {
+                                removedOutputs.add(output);
+                            }
+                        }
+                        deleted += FileSync.deleteFiles(getOutputDirectory(), removedOutputs);
+                        if (changedOutputs != null) {
+                            changedOutputs.addAll(removedOutputs);
+                        }
+                    }
+                    metrics.setCount("filesDeleted", deleted);
+                } else if (direct) {
+                    // outputs flushed before the failure would be taken for the outputs of a complete run
+                    for (ChangeDetectingFileManager changeDetectingFileManager : changeDetectingFileManagers) {
+                        changedOutputs.addAll(changeDetectingFileManager.getFlushed());
                     }
-                });
+                    metrics.setCount("filesDeleted", FileSync.deleteFiles(getOutputDirectory(), changedOutputs));
+                }
+                if (!direct) {
+                    FileUtils.deleteDirectory(tempDirectory);
+                    for (File shardDirectory : tempDirectories) {
+                        FileUtils.deleteDirectory(shardDirectory);
+                    }
+                }
+                time = metrics.addTime("sync", time);
+
+                if (memoryMonitor != null) {
+                    List<MemoryMonitor.Round> rounds = memoryMonitor.getRounds();
+                    metrics.setRoundMemory(rounds);
+                    for (int i = 0; i < rounds.size(); i++) {
+                        MemoryMonitor.Round round = rounds.get(i);
+                        getLog().debug("Round " + (i + 1) + ": "
+                                + (round.getAllocatedBytes() >= 0 ? MemoryMonitor.megabytes(round.getAllocatedBytes()) + " MB allocated, " : "")
+                                + MemoryMonitor.megabytes(round.getHeapUsed()) + " MB heap used, "
+                                + MemoryMonitor.megabytes(round.getHeapLive()) + " MB heap live, "
+                                + round.getGcTime() + " ms in garbage collection");
+                    }
+                }
+                metrics.setCount("diagnostics", diagnosticListener.getReported());
+                if (diagnosticListener.getSuppressed() > 0) {
+                    getLog().info("Suppressed " + diagnosticListener.getSuppressed() + " duplicate or repeated diagnostics");
+                }
+                if (profiler != null) {
+                    File profileFile = new File(new File(projectBuildDirectory, PROFILE_DIRECTORY), getExecutionId() + ".txt");
+                    profiler.write(profileFile, PROFILE_LIMIT);
+                    getLog().info("Wrote processing profile to " + profileFile);
+                    for (Map.Entry<String, Long> entry : profiler.getSlowestSources(10)) {
+                        getLog().info("  " + TaskProfiler.millis(entry.getValue()) + " ms to parse " + entry.getKey());
+                    }
+                }
+                time = metrics.addTime("diagnostics", time);
             }
 
-            buildContext.refresh(getOutputDirectory());
+            if (!conflicts.isEmpty()) {
+                throw new MojoExecutionException("Parallel shards generated different content for " + conflicts
+                        + ", processing can't be split by package for the configured processors");
+            }
+
+            refreshOutputs(changedOutputs);
+
+            if (Boolean.TRUE.equals(rv) && fingerprint != null) {
+                Fingerprint.store(fingerprint, fingerprintFile);
+            }
+            if (Boolean.TRUE.equals(rv) && compileDirectory != null) {
+                Set<File> inputFiles = new TreeSet<File>(files);
+                for (Object file : FileUtils.listFiles(getOutputDirectory(), new String[] { "java" }, true)) {
+                    inputFiles.add((File) file);
+                }
+                writeCompilerStatus(inputFiles);
+                metrics.setProperty("compiled", "true");
+            }
+            if (Boolean.TRUE.equals(rv) && index != null) {
+                index.setSources(files);
+                index.store(indexFile);
+            }
+            if (Boolean.TRUE.equals(rv) && !caches.isEmpty()) {
+                time = System.nanoTime();
+                for (Map.Entry<String, CacheStorage> entry : caches.entrySet()) {
+                    if (entry.getKey().equals("remote") && !remoteCachePush) {
+                        continue;
+                    }
+                    try {
+                        entry.getValue().store(cacheKey, getOutputDirectory());
+                    } catch (IOException e) {
+                        getLog().warn("Unable to store generated sources in " + entry.getKey() + " cache " + cacheKey, e);
+                    }
+                }
+                metrics.addTime("cache", time);
+            }
+            metrics.setProperty("result", Boolean.TRUE.equals(rv) ? "success" : "failure");
         } catch (Exception e1) {
             getLog().error("execute error", e1);
             throw new MojoExecutionException(e1.getMessage(), e1);
 
         } finally {
-            if (fileManager != null) {
+            if (permit != null) {
+                permit.close();
+            }
+            for (IndexedFileManager indexedFileManager : indexedFileManagers) {
                 try {
-                    fileManager.close();
+                    indexedFileManager.closeArchives();
+                } catch (IOException e) {
+                    getLog().warn("Unable to close classpath archives", e);
+                }
+            }
+            for (StandardJavaFileManager fileManager : fileManagers) {
+                try {
+                    if (fileManagerKey != null) {
+                        FileManagerPool.release(fileManagerKey, fileManagerWeight, fileManager, fileManagerPoolSize * 1024L * 1024L);
+                    } else {
+                        fileManager.close();
+                    }
                 } catch (Exception e) {
                     getLog().warn("Unable to close fileManager", e);
                 }
             }
+            if (metricsReport) {
+                metrics.recordHeapPeak();
+                File metricsFile = new File(new File(projectBuildDirectory, METRICS_DIRECTORY), getExecutionId() + ".json");
+                try {
+                    metrics.write(metricsFile);
+                } catch (IOException e) {
+                    getLog().warn("Unable to write metrics report " + metricsFile, e);
+                }
+            }
         }
     }
 
     protected abstract File getOutputDirectory();
 
+    /**
+     * Get the file for persisted state of the given kind, unique per output directory
+     */
+    protected File getStateFile(String kind) {
+        return new File(new File(projectBuildDirectory, STATE_DIRECTORY), getExecutionId() + "." + kind);
+    }
+
+    private String getExecutionId() {
+        String prefix = isForTest() ? "test-" : getTestOutputDirectory() != null ? "all-" : "main-";
+        String id = Hashing.md5().hashString(getOutputDirectory().getAbsolutePath(), Charsets.UTF_8).toString();
+        return prefix + id.substring(0, 8);
+    }
+
     protected Set<File> getSourceDirectories() {
-        File outputDirectory = getOutputDirectory();
-        String outputPath = outputDirectory.getAbsolutePath();
+        if (getTestOutputDirectory() != null) {
+            Set<File> directories = getSourceDirectories(compileSourceRoots);
+            directories.addAll(getSourceDirectories(testCompileSourceRoots));
+            return directories;
+        }
+        return getSourceDirectories(isForTest() ? testCompileSourceRoots : compileSourceRoots);
+    }
+
+    private Set<File> getSourceDirectories(List<String> directoryNames) {
+        Set<String> outputPaths = new HashSet<String>();
+        outputPaths.add(getOutputDirectory().getAbsolutePath());
+        if (getTestOutputDirectory() != null) {
+            outputPaths.add(getTestOutputDirectory().getAbsolutePath());
+        }
         Set<File> directories = new HashSet<File>();
-        List<String> directoryNames = isForTest() ? testCompileSourceRoots : compileSourceRoots;
         for (String name : directoryNames) {
             File file = new File(name);
-            if (!file.getAbsolutePath().equals(outputPath) && file.exists()) {
+            if (!outputPaths.contains(file.getAbsolutePath()) && file.exists()) {
                 directories.add(file);
             }
         }
@@ -432,10 +1575,54 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
         return false;
     }
 
+    /**
+     * Get the output directory for files generated from test sources, if main and test sources are
+     * processed together
+     *
+     * @return directory or null, if only one kind of sources is processed
+     */
+    protected File getTestOutputDirectory() {
+        return null;
+    }
+
+    /**
+     * Fail for options which are not supported in combination with test sources, since ignoring them
+     * would silently change the outputs of the build
+     */
+    private void checkCombinedOptions() throws MojoExecutionException {
+        List<String> unsupported = new ArrayList<String>();
+        if (fork) {
+            unsupported.add("fork");
+        }
+        if (directOutput) {
+            unsupported.add("directOutput");
+        }
+        if (incrementalProcessing) {
+            unsupported.add("incrementalProcessing");
+        }
+        if (cache) {
+            unsupported.add("cache");
+        }
+        if (StringUtils.isNotEmpty(remoteCacheUrl)) {
+            unsupported.add("remoteCacheUrl");
+        }
+        if (processAndCompile) {
+            unsupported.add("processAndCompile");
+        }
+        if (!unsupported.isEmpty()) {
+            throw new MojoExecutionException(Joiner.on(", ").join(unsupported) + " not supported in combination "
+                    + "with test sources, remove them or use separate process and test-process executions");
+        }
+    }
+
     public void setBuildContext(BuildContext buildContext) {
         this.buildContext = buildContext;
     }
 
+    public void setSession(MavenSession session) {
+        this.session = session;
+    }
+
     public void setProject(MavenProject project) {
         this.project = project;
     }
@@ -464,6 +1651,10 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
         this.includes = includes;
     }
 
+    public void setExcludes(Set<String> excludes) {
+        this.excludes = excludes;
+    }
+
     public void setShowWarnings(boolean showWarnings) {
         this.showWarnings = showWarnings;
     }
@@ -476,4 +1667,112 @@ public abstract class AbstractProcessorMojo extends AbstractMojo {
         this.pluginArtifacts = pluginArtifacts;
     }
 
+    public void setSkipUnchanged(boolean skipUnchanged) {
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    public void setTrackedProcessors(Set<String> trackedProcessors) {
+        this.trackedProcessors = trackedProcessors;
+    }
+
+    public void setIncrementalProcessing(boolean incrementalProcessing) {
+        this.incrementalProcessing = incrementalProcessing;
+    }
+
+    public void setParallelShards(int parallelShards) {
+        this.parallelShards = parallelShards;
+    }
+
+    public void setFileManagerPoolSize(int fileManagerPoolSize) {
+        this.fileManagerPoolSize = fileManagerPoolSize;
+    }
+
+    public void setProcessAndCompile(boolean processAndCompile) {
+        this.processAndCompile = processAndCompile;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setWatchdogThreshold(int watchdogThreshold) {
+        this.watchdogThreshold = watchdogThreshold;
+    }
+
+    public void setHeapSoftLimit(int heapSoftLimit) {
+        this.heapSoftLimit = heapSoftLimit;
+    }
+
+    public void setMaxConcurrentExecutions(int maxConcurrentExecutions) {
+        this.maxConcurrentExecutions = maxConcurrentExecutions;
+    }
+
+    public void setExecutionMemoryBudget(int executionMemoryBudget) {
+        this.executionMemoryBudget = executionMemoryBudget;
+    }
+
+    public void setFork(boolean fork) {
+        this.fork = fork;
+    }
+
+    public void setForkJvmArgs(List<String> forkJvmArgs) {
+        this.forkJvmArgs = forkJvmArgs;
+    }
+
+    public void setForkIdleTimeout(int forkIdleTimeout) {
+        this.forkIdleTimeout = forkIdleTimeout;
+    }
+
+    public void setForkDirectory(File forkDirectory) {
+        this.forkDirectory = forkDirectory;
+    }
+
+    public void setDirectOutput(boolean directOutput) {
+        this.directOutput = directOutput;
+    }
+
+    public void setSyncParallelism(int syncParallelism) {
+        this.syncParallelism = syncParallelism;
+    }
+
+    public void setMetricsReport(boolean metricsReport) {
+        this.metricsReport = metricsReport;
+    }
+
+    public void setStreamSources(boolean streamSources) {
+        this.streamSources = streamSources;
+    }
+
+    public void setIndexClasspath(boolean indexClasspath) {
+        this.indexClasspath = indexClasspath;
+    }
+
+    public void setProfile(boolean profile) {
+        this.profile = profile;
+    }
+
+    public void setCache(boolean cache) {
+        this.cache = cache;
+    }
+
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public void setRemoteCacheUrl(String remoteCacheUrl) {
+        this.remoteCacheUrl = remoteCacheUrl;
+    }
+
+    public void setRemoteCachePush(boolean remoteCachePush) {
+        this.remoteCachePush = remoteCachePush;
+    }
+
+    public void setRemoteCacheTimeout(int remoteCacheTimeout) {
+        this.remoteCacheTimeout = remoteCacheTimeout;
+    }
+
 }
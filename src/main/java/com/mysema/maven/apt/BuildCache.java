@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * BuildCache stores the generated source trees of processor executions as compressed archives in a
+ * directory which may be shared by concurrent builds
+ *
+ * <p>Entries are addressed by a content fingerprint of the inputs of the execution. Entries are written
+ * to a temporary file and moved into place atomically, so that readers never see partial entries. Reading
+ * an entry marks it as recently used, and the least recently used entries are evicted when the total size
+ * exceeds the limit.</p>
+ */
+public class BuildCache implements CacheStorage {
+
+    private static final String SUFFIX = ".zip";
+
+    private final File directory;
+
+    private final long maxSize;
+
+    /**
+     * @param directory cache directory
+     * @param maxSize maximum total size of the entries in bytes
+     */
+    public BuildCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    private File getEntry(String key) {
+        return new File(new File(directory, key.substring(0, 2)), key + SUFFIX);
+    }
+
+    @Override
+    public boolean restore(String key, File target) throws IOException {
+        File entry = getEntry(key);
+        InputStream in;
+        try {
+            in = new BufferedInputStream(new FileInputStream(entry));
+        } catch (IOException e) {
+            // missing or evicted concurrently
+            return false;
+        }
+        try {
+            unzip(in, target);
+        } finally {
+            in.close();
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Extract the given zip stream into the given directory
+     */
+    static void unzip(InputStream stream, File target) throws IOException {
+        ZipInputStream in = new ZipInputStream(stream);
+        String targetPath = target.getCanonicalPath() + File.separator;
+        ZipEntry zipEntry;
+        while ((zipEntry = in.getNextEntry()) != null) {
+            File file = new File(target, zipEntry.getName());
+            if (!file.getCanonicalPath().startsWith(targetPath)) {
+                throw new IOException("Invalid cache entry " + zipEntry.getName());
+            }
+            if (zipEntry.isDirectory()) {
+                file.mkdirs();
+                continue;
+            }
+            file.getParentFile().mkdirs();
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                ByteStreams.copy(in, out);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries exceeding the size limit after storing
+     */
+    @Override
+    public void store(String key, File source) throws IOException {
+        File entry = getEntry(key);
+        entry.getParentFile().mkdirs();
+        File tempFile = new File(entry.getParentFile(), key + "-" + UUID.randomUUID() + ".tmp");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile));
+            try {
+                zip(source, out);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tempFile.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            tempFile.delete();
+        }
+        evict();
+    }
+
+    /**
+     * Write the files of the given directory as zip to the given stream, the stream stays open
+     */
+    static void zip(File source, OutputStream stream) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(stream);
+        addFiles(out, source, "");
+        out.finish();
+    }
+
+    private static void addFiles(ZipOutputStream out, File directory, String prefix) throws IOException {
+        String[] children = directory.list();
+        if (children == null) {
+            return;
+        }
+        for (String child : children) {
+            File file = new File(directory, child);
+            if (file.isDirectory()) {
+                addFiles(out, file, prefix + child + "/");
+            } else {
+                ZipEntry zipEntry = new ZipEntry(prefix + child);
+                zipEntry.setTime(file.lastModified());
+                out.putNextEntry(zipEntry);
+                InputStream in = new FileInputStream(file);
+                try {
+                    ByteStreams.copy(in, out);
+                } finally {
+                    in.close();
+                }
+                out.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the total size is within the limit
+     */
+    public void evict() throws IOException {
+        // file locks are held per JVM, so executions of parallel builds in the same JVM are serialized first
+        synchronized (BuildCache.class) {
+            directory.mkdirs();
+            RandomAccessFile lockFile = new RandomAccessFile(new File(directory, ".lock"), "rw");
+            try {
+                // builds in other JVMs evict one after the other
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    List<File> entries = new ArrayList<File>();
+                    long size = 0;
+                    File[] subdirectories = directory.listFiles();
+                    for (File subdirectory : subdirectories != null ? subdirectories : new File[0]) {
+                        File[] files = subdirectory.listFiles();
+                        for (File file : files != null ? files : new File[0]) {
+                            if (file.getName().endsWith(SUFFIX)) {
+                                entries.add(file);
+                                size += file.length();
+                            }
+                        }
+                    }
+                    if (size <= maxSize) {
+                        return;
+                    }
+                    final Map<File, Long> lastModified = new HashMap<File, Long>();
+                    for (File file : entries) {
+                        lastModified.put(file, file.lastModified());
+                    }
+                    Collections.sort(entries, new Comparator<File>() {
+                        @Override
+                        public int compare(File o1, File o2) {
+                            return lastModified.get(o1).compareTo(lastModified.get(o2));
+                        }
+                    });
+                    for (File file : entries) {
+                        if (size <= maxSize) {
+                            break;
+                        }
+                        long length = file.length();
+                        if (file.delete()) {
+                            size -= length;
+                        }
+                    }
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * CacheStorage stores the generated source trees of processor executions by the content fingerprint
+ * of their inputs
+ *
+ * <p>Implementations need to support concurrent access from several builds. Failures are reported as
+ * IOExceptions, callers fall back to running the processors.</p>
+ */
+public interface CacheStorage {
+
+    /**
+     * Extract the entry of the given key into the given directory, which may contain partial results
+     * on failure
+     *
+     * @return false, if there is no entry for the key
+     */
+    boolean restore(String key, File target) throws IOException;
+
+    /**
+     * Store the files of the given directory as entry of the given key
+     */
+    void store(String key, File source) throws IOException;
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * ChangeDetectingFileManager buffers generated sources in memory and writes them to the output directory
+ * only if their content differs from the existing file
+ *
+ * <p>File managers of concurrent tasks writing to the same output directory share the map of generated
+ * files, so that files generated with different content by several tasks are reported as conflicts.
+ * The files written to the output directory are recorded, so that they can be deleted again, if the
+ * processing fails.</p>
+ */
+public class ChangeDetectingFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+    private final File outputDirectory;
+
+    private final Charset charset;
+
+    private final ConcurrentMap<File, HashCode> generatedFiles;
+
+    private final Set<String> conflicts;
+
+    private final AtomicInteger unchanged = new AtomicInteger();
+
+    private final Set<String> flushed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param fileManager file manager to delegate to
+     * @param outputDirectory directory for generated sources
+     * @param charset charset of generated sources
+     * @param generatedFiles map to be populated with the generated files and the hashes of their content
+     * @param conflicts set to be populated with the relative paths of files generated with different content
+     */
+    public ChangeDetectingFileManager(JavaFileManager fileManager, File outputDirectory, Charset charset,
+            ConcurrentMap<File, HashCode> generatedFiles, Set<String> conflicts) {
+        super(fileManager);
+        this.outputDirectory = outputDirectory;
+        this.charset = charset;
+        this.generatedFiles = generatedFiles;
+        this.conflicts = conflicts;
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+            FileObject sibling) throws IOException {
+        if (location == StandardLocation.SOURCE_OUTPUT) {
+            File file = new File(outputDirectory, className.replace('.', File.separatorChar) + kind.extension);
+            return new BufferedFileObject(file, kind, className);
+        }
+        return super.getJavaFileForOutput(location, className, kind, sibling);
+    }
+
+    @Override
+    public FileObject getFileForOutput(Location location, String packageName, String relativeName, FileObject sibling)
+            throws IOException {
+        if (location == StandardLocation.SOURCE_OUTPUT) {
+            File directory = packageName.isEmpty() ? outputDirectory
+                    : new File(outputDirectory, packageName.replace('.', File.separatorChar));
+            return new BufferedFileObject(new File(directory, relativeName), JavaFileObject.Kind.OTHER, null);
+        }
+        return super.getFileForOutput(location, packageName, relativeName, sibling);
+    }
+
+    // overrides the default method of JDK 18 and later
+    public JavaFileObject getJavaFileForOutputForOriginatingFiles(Location location, String className,
+            JavaFileObject.Kind kind, FileObject... originatingFiles) throws IOException {
+        return getJavaFileForOutput(location, className, kind, null);
+    }
+
+    // overrides the default method of JDK 18 and later
+    public FileObject getFileForOutputForOriginatingFiles(Location location, String packageName, String relativeName,
+            FileObject... originatingFiles) throws IOException {
+        return getFileForOutput(location, packageName, relativeName, null);
+    }
+
+    @Override
+    public String inferBinaryName(Location location, JavaFileObject file) {
+        if (file instanceof BufferedFileObject) {
+            return ((BufferedFileObject) file).binaryName;
+        }
+        return super.inferBinaryName(location, file);
+    }
+
+    @Override
+    public boolean isSameFile(FileObject a, FileObject b) {
+        if (a instanceof BufferedFileObject || b instanceof BufferedFileObject) {
+            return a.toUri().equals(b.toUri());
+        }
+        return super.isSameFile(a, b);
+    }
+
+    private void written(File file, byte[] content) throws IOException {
+        HashCode hash = Hashing.murmur3_128().hashBytes(content);
+        HashCode previous = generatedFiles.putIfAbsent(file, hash);
+        if (previous != null) {
+            if (!previous.equals(hash)) {
+                conflicts.add(outputDirectory.toURI().relativize(file.toURI()).getPath());
+            }
+        } else if (!file.exists() || file.length() != content.length || !Arrays.equals(Files.toByteArray(file), content)) {
+            file.getParentFile().mkdirs();
+            flushed.add(outputDirectory.toURI().relativize(file.toURI()).getPath());
+            Files.write(content, file);
+        } else {
+            unchanged.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return relative paths of the files written to the output directory
+     */
+    public Set<String> getFlushed() {
+        return Collections.unmodifiableSet(flushed);
+    }
+
+    /**
+     * @return amount of generated files with the same content as the existing file
+     */
+    public int getUnchanged() {
+        return unchanged.get();
+    }
+
+    /**
+     * File object that keeps its content in memory and hands it to the file manager when closed
+     */
+    private class BufferedFileObject extends SimpleJavaFileObject {
+
+        private final File file;
+
+        private final String binaryName;
+
+        private byte[] content;
+
+        BufferedFileObject(File file, Kind kind, String binaryName) {
+            super(file.toURI(), kind);
+            this.file = file;
+            this.binaryName = binaryName;
+        }
+
+        @Override
+        public OutputStream openOutputStream() throws IOException {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() throws IOException {
+                    content = toByteArray();
+                    written(file, content);
+                }
+            };
+        }
+
+        @Override
+        public Writer openWriter() throws IOException {
+            return new OutputStreamWriter(openOutputStream(), charset);
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            if (content == null) {
+                throw new IllegalStateException(file + " has not been written");
+            }
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            if (content == null) {
+                throw new IllegalStateException(file + " has not been written");
+            }
+            return new String(content, charset);
+        }
+
+        @Override
+        public long getLastModified() {
+            return file.lastModified();
+        }
+
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.io.Files;
+
+/**
+ * ClasspathIndex records the packages contained in each archive of a classpath
+ *
+ * <p>Packages are identified by their path with / as separator, the root of an archive is the empty path.
+ * Directories of the classpath are not indexed, since their content changes between builds. Indexes are
+ * stored per execution and classpath, keyed by the paths and stamps of the classpath elements, so that
+ * executions with different classpaths sharing a directory keep their indexes.</p>
+ */
+public class ClasspathIndex {
+
+    private static final String SUFFIX = ".index";
+
+    // stored path of the root package
+    private static final String ROOT = "/";
+
+    private static final Joiner JOINER = Joiner.on(' ');
+
+    private static final Splitter SPLITTER = Splitter.on(' ').omitEmptyStrings();
+
+    // packages per archive in classpath order
+    private final Map<File, Set<String>> archives = new LinkedHashMap<File, Set<String>>();
+
+    // archives per package
+    private final Map<String, Set<File>> packages = new HashMap<String, Set<File>>();
+
+    /**
+     * Get the key of the index for the given classpath
+     */
+    public static String getKey(List<String> classpathElements) {
+        return FileManagerPool.getKey(classpathElements, null);
+    }
+
+    /**
+     * Load the index of the given classpath from the given directory or build and store it there,
+     * replacing the previous index of the given execution
+     *
+     * @param directory directory of the stored indexes
+     * @param execution id of the execution, which must not contain dots
+     * @param classpathElements classpath to index
+     */
+    public static ClasspathIndex get(File directory, String execution, List<String> classpathElements) throws IOException {
+        File file = new File(directory, execution + "." + getKey(classpathElements) + SUFFIX);
+        ClasspathIndex index = load(file);
+        if (index == null) {
+            index = build(classpathElements);
+            File[] previous = directory.listFiles();
+            if (previous != null) {
+                for (File other : previous) {
+                    if (other.getName().startsWith(execution + ".") && other.getName().endsWith(SUFFIX)) {
+                        other.delete();
+                    }
+                }
+            }
+            index.store(file);
+        }
+        return index;
+    }
+
+    /**
+     * Build the index by reading the entries of the archives of the given classpath
+     */
+    public static ClasspathIndex build(List<String> classpathElements) throws IOException {
+        ClasspathIndex index = new ClasspathIndex();
+        for (String element : classpathElements) {
+            File file = new File(element);
+            if (!file.isFile() || index.archives.containsKey(file)) {
+                continue;
+            }
+            Set<String> packages = new TreeSet<String>();
+            ZipFile zipFile;
+            try {
+                zipFile = new ZipFile(file);
+            } catch (IOException e) {
+                // javac skips unreadable archives as well
+                continue;
+            }
+            try {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory()) {
+                        String name = entry.getName();
+                        packages.add(name.substring(0, Math.max(name.lastIndexOf('/'), 0)));
+                    }
+                }
+            } finally {
+                zipFile.close();
+            }
+            index.put(file, packages);
+        }
+        return index;
+    }
+
+    /**
+     * Load the index from the given file
+     *
+     * @return index or null, if the file doesn't exist or is malformed
+     */
+    public static ClasspathIndex load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        BufferedReader reader = Files.newReader(file, Charsets.UTF_8);
+        try {
+            ClasspathIndex index = new ClasspathIndex();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf('\t');
+                if (separator < 0) {
+                    return null;
+                }
+                Set<String> archivePackages = new HashSet<String>();
+                for (String packagePath : SPLITTER.split(line.substring(separator + 1))) {
+                    archivePackages.add(packagePath.equals(ROOT) ? "" : packagePath);
+                }
+                index.put(new File(line.substring(0, separator)), archivePackages);
+            }
+            return index;
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void store(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        Writer writer = Files.newWriter(file, Charsets.UTF_8);
+        try {
+            for (Map.Entry<File, Set<String>> entry : archives.entrySet()) {
+                List<String> archivePackages = new ArrayList<String>(entry.getValue().size());
+                for (String packagePath : entry.getValue()) {
+                    archivePackages.add(packagePath.isEmpty() ? ROOT : packagePath);
+                }
+                writer.write(entry.getKey().getPath() + "\t" + JOINER.join(archivePackages) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void put(File archive, Set<String> archivePackages) {
+        archives.put(archive, archivePackages);
+        for (String packagePath : archivePackages) {
+            Set<File> packageArchives = packages.get(packagePath);
+            if (packageArchives == null) {
+                packageArchives = new HashSet<File>();
+                packages.put(packagePath, packageArchives);
+            }
+            packageArchives.add(archive);
+        }
+    }
+
+    /**
+     * @return true, if the given classpath element is an indexed archive
+     */
+    public boolean isIndexed(File element) {
+        return archives.containsKey(element);
+    }
+
+    /**
+     * @return indexed archives containing the given package
+     */
+    public Set<File> getArchives(String packagePath) {
+        Set<File> packageArchives = packages.get(packagePath);
+        return packageArchives != null ? packageArchives : Collections.<File> emptySet();
+    }
+
+    /**
+     * @return packages of the given archive
+     */
+    public Set<String> getPackages(File archive) {
+        Set<String> archivePackages = archives.get(archive);
+        return archivePackages != null ? archivePackages : Collections.<String> emptySet();
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+/**
+ * CombinedAnnotationProcessorMojo calls APT processors for main and test sources in a single run
+ *
+ * <p>The sources share one javac task with the test classpath, which is a superset of the compile
+ * classpath. Files generated only from test sources are written to testOutputDirectory, which is added
+ * as test compile source root like by the add-test-sources goal, all other files to outputDirectory.
+ * Routing needs the origins of the generated files, so it applies only to trackedProcessors.</p>
+ *
+ * <p>fork, directOutput, incrementalProcessing, the caches and processAndCompile are not supported and
+ * fail the execution.</p>
+ */
+@Mojo(name = "process-all", defaultPhase = LifecyclePhase.GENERATE_SOURCES, requiresDependencyResolution = ResolutionScope.TEST, threadSafe = true)
+public class CombinedAnnotationProcessorMojo extends AbstractProcessorMojo {
+
+    @Parameter
+    private File outputDirectory;
+
+    @Parameter(required = true)
+    private File testOutputDirectory;
+
+    @Override
+    public File getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    @Override
+    protected File getTestOutputDirectory() {
+        return testOutputDirectory;
+    }
+
+    public void setOutputDirectory(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+    }
+
+    public void setTestOutputDirectory(File testOutputDirectory) {
+        this.testOutputDirectory = testOutputDirectory;
+    }
+
+}
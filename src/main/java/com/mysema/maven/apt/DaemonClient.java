@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * DaemonClient submits annotation processing tasks to a {@link ProcessorDaemon}, which is started when
+ * no daemon with the same JVM configuration is running
+ */
+public class DaemonClient {
+
+    private static final int CONNECT_TIMEOUT = 1000;
+
+    private static final int START_TIMEOUT = 30000;
+
+    private final File directory;
+
+    private final List<String> command;
+
+    private final String key;
+
+    private final int readTimeout;
+
+    /**
+     * @param directory directory for the port and log files of the daemons
+     * @param jvmArgs JVM arguments of the daemon
+     * @param idleTimeout idle time in seconds after which the daemon exits
+     * @param readTimeout time in milliseconds to wait for a message of the daemon, 0 for no limit
+     */
+    public DaemonClient(File directory, List<String> jvmArgs, int idleTimeout, int readTimeout) {
+        File classpath;
+        try {
+            classpath = new File(ProcessorDaemon.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+        this.directory = directory;
+        this.readTimeout = readTimeout;
+        this.command = new ArrayList<String>();
+        command.add(java);
+        if (jvmArgs != null) {
+            command.addAll(jvmArgs);
+        }
+        command.add("-cp");
+        command.add(classpath.getAbsolutePath());
+        command.add(ProcessorDaemon.class.getName());
+        // daemons are shared between builds with the same JVM, arguments and plugin version
+        this.key = new Fingerprint().putString(command.toString()).putFile(classpath).hash().substring(0, 12);
+        command.add(getPortFile().getAbsolutePath());
+        command.add(String.valueOf(idleTimeout));
+    }
+
+    /**
+     * Create a task that processes the given files with the given options in the daemon
+     *
+     * @param options compiler options
+     * @param files source files
+     * @param listener listener for the diagnostics of the daemon
+     * @param out writer for additional compiler output or null for System.err
+     */
+    public Callable<Boolean> newTask(final List<String> options, final Collection<File> files,
+            final DiagnosticListener<? super JavaFileObject> listener, final Writer out) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                List<String> paths = new ArrayList<String>(files.size());
+                for (File file : files) {
+                    paths.add(file.getAbsolutePath());
+                }
+                return process(options, paths, listener, out);
+            }
+        };
+    }
+
+    private boolean process(List<String> options, List<String> files, DiagnosticListener<? super JavaFileObject> listener,
+            Writer out) throws IOException {
+        Socket socket = connect();
+        try {
+            // blocking reads are not interruptible, so cancelled tasks end with the timeout
+            socket.setSoTimeout(readTimeout);
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            ProcessorDaemon.writeStrings(output, options);
+            ProcessorDaemon.writeStrings(output, files);
+            output.flush();
+
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                int type = input.readByte();
+                if (type == ProcessorDaemon.DIAGNOSTIC) {
+                    Diagnostic.Kind kind = Diagnostic.Kind.valueOf(ProcessorDaemon.readString(input));
+                    String source = ProcessorDaemon.readString(input);
+                    long line = input.readLong();
+                    long column = input.readLong();
+                    String message = ProcessorDaemon.readString(input);
+                    listener.report(new RemoteDiagnostic(kind, source.isEmpty() ? null : new File(source), line, column, message));
+                } else if (type == ProcessorDaemon.RESULT) {
+                    boolean success = input.readBoolean();
+                    String compilerOutput = ProcessorDaemon.readString(input);
+                    if (out != null) {
+                        out.write(compilerOutput);
+                    } else {
+                        System.err.print(compilerOutput);
+                    }
+                    return success;
+                } else {
+                    throw new IOException("Unexpected message type " + type);
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = tryConnect();
+        if (socket != null) {
+            return socket;
+        }
+        // start at most one daemon per key at a time, file locks only guard against other processes
+        synchronized (DaemonClient.class) {
+            return startAndConnect();
+        }
+    }
+
+    private Socket startAndConnect() throws IOException {
+        directory.mkdirs();
+        Socket socket = null;
+        RandomAccessFile lockFile = new RandomAccessFile(new File(directory, key + ".lock"), "rw");
+        try {
+            FileLock lock = lockFile.getChannel().lock();
+            try {
+                socket = tryConnect();
+                if (socket == null) {
+                    getPortFile().delete();
+                    ProcessBuilder builder = new ProcessBuilder(command);
+                    builder.redirectErrorStream(true);
+                    builder.redirectOutput(new File(directory, key + ".log"));
+                    builder.start();
+                    long deadline = System.currentTimeMillis() + START_TIMEOUT;
+                    while (socket == null && System.currentTimeMillis() < deadline) {
+                        Thread.sleep(100);
+                        socket = tryConnect();
+                    }
+                }
+            } finally {
+                lock.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lockFile.close();
+        }
+        if (socket == null) {
+            throw new IOException("Unable to start annotation processing daemon, see " + new File(directory, key + ".log"));
+        }
+        return socket;
+    }
+
+    /**
+     * Connect to the daemon published in the port file and send the access token
+     *
+     * @return socket or null, if no daemon is reachable
+     */
+    private Socket tryConnect() throws IOException {
+        List<String> portFile = readPortFile();
+        if (portFile == null) {
+            return null;
+        }
+        Socket socket = new Socket();
+        try {
+            int port = Integer.parseInt(portFile.get(0));
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+            ProcessorDaemon.writeString(new DataOutputStream(socket.getOutputStream()), portFile.get(1));
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            return null;
+        } catch (NumberFormatException e) {
+            socket.close();
+            return null;
+        }
+    }
+
+    private List<String> readPortFile() throws IOException {
+        File portFile = getPortFile();
+        if (!portFile.exists()) {
+            return null;
+        }
+        List<String> fields = Lists.newArrayList(Splitter.on(' ').split(Files.toString(portFile, Charsets.UTF_8).trim()));
+        return fields.size() == 2 ? fields : null;
+    }
+
+    private File getPortFile() {
+        return new File(directory, key + ".port");
+    }
+
+    /**
+     * Diagnostic reported by the daemon
+     */
+    private static class RemoteDiagnostic implements Diagnostic<JavaFileObject> {
+
+        private final Kind kind;
+
+        private final JavaFileObject source;
+
+        private final long line, column;
+
+        private final String message;
+
+        RemoteDiagnostic(Kind kind, File source, long line, long column, String message) {
+            this.kind = kind;
+            this.source = source != null ? new SimpleJavaFileObject(source.toURI(), JavaFileObject.Kind.SOURCE) {} : null;
+            this.line = line;
+            this.column = column;
+            this.message = message;
+        }
+
+        @Override
+        public Kind getKind() {
+            return kind;
+        }
+
+        @Override
+        public JavaFileObject getSource() {
+            return source;
+        }
+
+        @Override
+        public long getPosition() {
+            return NOPOS;
+        }
+
+        @Override
+        public long getStartPosition() {
+            return NOPOS;
+        }
+
+        @Override
+        public long getEndPosition() {
+            return NOPOS;
+        }
+
+        @Override
+        public long getLineNumber() {
+            return line;
+        }
+
+        @Override
+        public long getColumnNumber() {
+            return column;
+        }
+
+        @Override
+        public String getCode() {
+            return null;
+        }
+
+        @Override
+        public String getMessage(Locale locale) {
+            return message;
+        }
+
+        @Override
+        public String toString() {
+            return kind + ": " + message;
+        }
+
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+/**
+ * DependencyIndex maps generated files to the source files they originate from
+ *
+ * <p>Source files are identified by their absolute path and stamped with length and modification time,
+ * generated files by their path relative to the output directory. Generated files with an empty set
+ * of origins have unknown origins. Origins which are not among the processed sources, e.g. supertypes
+ * outside of the includes read through the sourcepath, are stamped as dependencies, so that their
+ * changes are detected as well.</p>
+ */
+public class DependencyIndex {
+
+    private static final String CONFIGURATION = "C", SOURCE = "S", DEPENDENCY = "D", OUTPUT = "O";
+
+    private static final Joiner JOINER = Joiner.on('\t');
+
+    private static final Splitter SPLITTER = Splitter.on('\t');
+
+    private final String configuration;
+
+    private final Map<String, String> sources = new TreeMap<String, String>();
+
+    private final Map<String, String> dependencies = new TreeMap<String, String>();
+
+    private final Map<String, Set<String>> outputs = new TreeMap<String, Set<String>>();
+
+    public DependencyIndex(String configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Load the index from the given file
+     *
+     * @return index or null, if the file doesn't exist or is malformed
+     */
+    public static DependencyIndex load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        BufferedReader reader = Files.newReader(file, Charsets.UTF_8);
+        try {
+            String line = reader.readLine();
+            if (line == null || !line.startsWith(CONFIGURATION + "\t")) {
+                return null;
+            }
+            DependencyIndex index = new DependencyIndex(line.substring(2));
+            while ((line = reader.readLine()) != null) {
+                List<String> fields = Lists.newArrayList(SPLITTER.split(line));
+                if (fields.get(0).equals(SOURCE) && fields.size() == 3) {
+                    index.sources.put(fields.get(1), fields.get(2));
+                } else if (fields.get(0).equals(DEPENDENCY) && fields.size() == 3) {
+                    index.dependencies.put(fields.get(1), fields.get(2));
+                } else if (fields.get(0).equals(OUTPUT) && fields.size() >= 2) {
+                    index.outputs.put(fields.get(1), new HashSet<String>(fields.subList(2, fields.size())));
+                } else {
+                    return null;
+                }
+            }
+            return index;
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void store(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        Writer writer = Files.newWriter(file, Charsets.UTF_8);
+        try {
+            writer.write(JOINER.join(CONFIGURATION, configuration) + "\n");
+            for (Map.Entry<String, String> entry : sources.entrySet()) {
+                writer.write(JOINER.join(SOURCE, entry.getKey(), entry.getValue()) + "\n");
+            }
+            for (Map.Entry<String, String> entry : dependencies.entrySet()) {
+                writer.write(JOINER.join(DEPENDENCY, entry.getKey(), entry.getValue()) + "\n");
+            }
+            for (Map.Entry<String, Set<String>> entry : outputs.entrySet()) {
+                List<String> fields = Lists.newArrayList(OUTPUT, entry.getKey());
+                fields.addAll(new TreeSet<String>(entry.getValue()));
+                writer.write(JOINER.join(fields) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    public String getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * @return true, if the origins of all generated files are known
+     */
+    public boolean isComplete() {
+        for (Set<String> origins : outputs.values()) {
+            if (origins.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the paths of the given files that are new or modified, of the indexed files that are
+     * no longer contained in the given files, and of the dependencies that are modified or deleted
+     */
+    public Set<String> getChangedSources(Collection<File> files) {
+        Set<String> changed = new HashSet<String>(sources.keySet());
+        for (File file : files) {
+            String path = file.getAbsolutePath();
+            if (stamp(file).equals(sources.get(path))) {
+                changed.remove(path);
+            } else {
+                changed.add(path);
+            }
+        }
+        for (Map.Entry<String, String> entry : dependencies.entrySet()) {
+            if (!stamp(new File(entry.getKey())).equals(entry.getValue())) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Get the generated files that originate from any of the given sources
+     */
+    public Set<String> getOutputs(Collection<String> origins) {
+        Set<String> rv = new HashSet<String>();
+        for (Map.Entry<String, Set<String>> entry : outputs.entrySet()) {
+            if (!Collections.disjoint(entry.getValue(), origins)) {
+                rv.add(entry.getKey());
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Get the origins of the given generated files
+     */
+    public Set<String> getOrigins(Collection<String> generated) {
+        Set<String> rv = new HashSet<String>();
+        for (String output : generated) {
+            if (outputs.containsKey(output)) {
+                rv.addAll(outputs.get(output));
+            }
+        }
+        return rv;
+    }
+
+    public boolean hasOutput(String generated) {
+        return outputs.containsKey(generated);
+    }
+
+    public void putOutput(String generated, Set<String> origins) {
+        outputs.put(generated, origins);
+    }
+
+    public void removeOutputs(Collection<String> generated) {
+        outputs.keySet().removeAll(generated);
+    }
+
+    /**
+     * Replace the stamps of the indexed sources with the ones of the given files, and the stamps of the
+     * dependencies with the ones of the other origins of the generated files
+     */
+    public void setSources(Collection<File> files) {
+        sources.clear();
+        for (File file : files) {
+            sources.put(file.getAbsolutePath(), stamp(file));
+        }
+        dependencies.clear();
+        for (Set<String> origins : outputs.values()) {
+            for (String origin : origins) {
+                if (!sources.containsKey(origin)) {
+                    dependencies.put(origin, stamp(new File(origin)));
+                }
+            }
+        }
+    }
+
+    private static String stamp(File file) {
+        return file.length() + ":" + file.lastModified();
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * ExecutionGovernor limits the number and the estimated memory demand of processor executions running
+ * concurrently in the JVM, e.g. in builds of the parallel builder of Maven
+ *
+ * <p>The governor is static and lives as long as the plugin class loader, which spans all executions of
+ * the plugin in a Maven session. An execution waits until both another permit and enough of the memory
+ * budget is available. A single execution is always admitted, even if its demand exceeds the budget,
+ * and waiting executions are admitted in arrival order, so that large executions aren't starved.</p>
+ */
+public final class ExecutionGovernor {
+
+    // estimated ratio of the heap usage of javac to the size of the parsed sources
+    private static final int SOURCE_FACTOR = 32;
+
+    private static int running;
+
+    private static long reserved;
+
+    // waiting executions in arrival order
+    private static final LinkedList<Object> waiting = new LinkedList<Object>();
+
+    /**
+     * Reservation of an admitted execution
+     */
+    public static final class Permit implements Closeable {
+
+        private final long demand;
+
+        private boolean released;
+
+        private Permit(long demand) {
+            this.demand = demand;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ExecutionGovernor.class) {
+                if (!released) {
+                    released = true;
+                    running--;
+                    reserved -= demand;
+                    ExecutionGovernor.class.notifyAll();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Get the estimated heap demand of an execution with the given sources and classpath, which is the
+     * size of the classpath archives and a multiple of the size of the sources
+     */
+    public static long getDemand(Collection<File> sources, List<String> classpathElements) {
+        long demand = FileManagerPool.getWeight(classpathElements);
+        for (File source : sources) {
+            demand += source.length() * SOURCE_FACTOR;
+        }
+        return demand;
+    }
+
+    /**
+     * Wait until the execution with the given demand is admitted
+     *
+     * @param maxRunning maximum number of concurrent executions
+     * @param budget maximum total demand of concurrent executions
+     * @param demand estimated heap demand of the execution
+     */
+    public static synchronized Permit acquire(int maxRunning, long budget, long demand) throws InterruptedException {
+        Object ticket = new Object();
+        waiting.addLast(ticket);
+        try {
+            while (waiting.getFirst() != ticket
+                    || (running > 0 && (running >= maxRunning || demand > budget - reserved))) {
+                ExecutionGovernor.class.wait();
+            }
+        } finally {
+            waiting.remove(ticket);
+            // the next waiting execution may be admitted as well
+            ExecutionGovernor.class.notifyAll();
+        }
+        running++;
+        reserved += demand;
+        return new Permit(demand);
+    }
+
+    private ExecutionGovernor() {}
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * ExecutionMetrics collects timings, counts and memory statistics of a processor execution and writes them
+ * as JSON
+ *
+ * <p>Phase timings and counts are recorded by the executing thread, processor and round timings may be
+ * recorded concurrently by the javac tasks.</p>
+ */
+public class ExecutionMetrics {
+
+    private final Map<String, String> properties = new LinkedHashMap<String, String>();
+
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    private final Map<String, Long> counts = new LinkedHashMap<String, Long>();
+
+    private final ConcurrentMap<Integer, AtomicLong> rounds = new ConcurrentSkipListMap<Integer, AtomicLong>();
+
+    private final ConcurrentMap<String, AtomicLong> processors = new ConcurrentSkipListMap<String, AtomicLong>();
+
+    private List<MemoryMonitor.Round> roundMemory = Collections.emptyList();
+
+    public void setProperty(String name, String value) {
+        properties.put(name, value);
+    }
+
+    /**
+     * Add the time elapsed since the given start to the given phase
+     *
+     * @param phase name of the phase
+     * @param start start in nanoseconds
+     * @return current time in nanoseconds as start of the next phase
+     */
+    public long addTime(String phase, long start) {
+        long now = System.nanoTime();
+        Long previous = phases.get(phase);
+        phases.put(phase, (previous != null ? previous : 0L) + now - start);
+        return now;
+    }
+
+    public void setCount(String name, long value) {
+        counts.put(name, value);
+    }
+
+    /**
+     * Add the time the given processor spent in the given round
+     *
+     * @param processor class name of the processor
+     * @param round zero based round
+     * @param nanos elapsed time in nanoseconds
+     */
+    public void addProcessorTime(String processor, int round, long nanos) {
+        get(processors, processor).addAndGet(nanos);
+        get(rounds, round).addAndGet(nanos);
+    }
+
+    /**
+     * Set the memory statistics of the rounds
+     */
+    public void setRoundMemory(List<MemoryMonitor.Round> roundMemory) {
+        this.roundMemory = roundMemory;
+    }
+
+    /**
+     * Reset the peak usage of the heap memory pools, which is shared by everything running in the JVM
+     */
+    public void resetHeapPeak() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Set the sum of the peak usages of the heap memory pools since the last reset as heapPeak count in bytes
+     */
+    public void recordHeapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getType() == MemoryType.HEAP ? pool.getPeakUsage() : null;
+            if (usage != null) {
+                peak += usage.getUsed();
+            }
+        }
+        setCount("heapPeak", peak);
+    }
+
+    private static <K> AtomicLong get(ConcurrentMap<K, AtomicLong> map, K key) {
+        AtomicLong value = map.get(key);
+        if (value == null) {
+            AtomicLong created = new AtomicLong();
+            value = map.putIfAbsent(key, created);
+            if (value == null) {
+                value = created;
+            }
+        }
+        return value;
+    }
+
+    public void write(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(toJson(), file, Charsets.UTF_8);
+    }
+
+    /**
+     * Get the metrics as JSON object with times in milliseconds
+     */
+    public String toJson() {
+        StringBuilder builder = new StringBuilder("{\n");
+        for (Map.Entry<String, String> entry : properties.entrySet()) {
+            builder.append("  ").append(quote(entry.getKey())).append(": ").append(quote(entry.getValue())).append(",\n");
+        }
+        builder.append("  \"phases\": {");
+        appendTimes(builder, phases);
+        builder.append("},\n  \"counts\": {");
+        String separator = "";
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            builder.append(separator).append("\n    ").append(quote(entry.getKey())).append(": ").append(entry.getValue());
+            separator = ",";
+        }
+        builder.append(counts.isEmpty() ? "" : "\n  ").append("},\n  \"rounds\": [");
+        separator = "";
+        for (AtomicLong round : rounds.values()) {
+            builder.append(separator).append(millis(round.get()));
+            separator = ", ";
+        }
+        builder.append("],\n  \"roundMemory\": [");
+        separator = "";
+        for (MemoryMonitor.Round round : roundMemory) {
+            builder.append(separator).append("\n    {\"allocatedBytes\": ").append(round.getAllocatedBytes())
+                    .append(", \"heapUsed\": ").append(round.getHeapUsed())
+                    .append(", \"heapLive\": ").append(round.getHeapLive())
+                    .append(", \"gcTime\": ").append(round.getGcTime()).append('}');
+            separator = ",";
+        }
+        builder.append(roundMemory.isEmpty() ? "" : "\n  ").append("],\n  \"processors\": {");
+        Map<String, Long> processorTimes = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : processors.entrySet()) {
+            processorTimes.put(entry.getKey(), entry.getValue().get());
+        }
+        appendTimes(builder, processorTimes);
+        builder.append("}\n}\n");
+        return builder.toString();
+    }
+
+    private static void appendTimes(StringBuilder builder, Map<String, Long> times) {
+        String separator = "";
+        for (Map.Entry<String, Long> entry : times.entrySet()) {
+            builder.append(separator).append("\n    ").append(quote(entry.getKey())).append(": ").append(millis(entry.getValue()));
+            separator = ",";
+        }
+        if (!times.isEmpty()) {
+            builder.append("\n  ");
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+
+/**
+ * FileManagerPool keeps idle file managers together with their opened classpath archives for reuse
+ *
+ * <p>The pool is static and shared by all executions of the plugin in a Maven session, at the end of
+ * which it is cleared by {@link SessionCleanup}. File managers are keyed by classpath, archive stamps and encoding, and are
+ * evicted in least recently used order when the size of their classpath archives exceeds the limit.</p>
+ */
+public final class FileManagerPool {
+
+    private static final class Entry {
+
+        private final String key;
+
+        private final long weight;
+
+        private final StandardJavaFileManager fileManager;
+
+        Entry(String key, long weight, StandardJavaFileManager fileManager) {
+            this.key = key;
+            this.weight = weight;
+            this.fileManager = fileManager;
+        }
+
+    }
+
+    // least recently used first
+    private static final LinkedList<Entry> idle = new LinkedList<Entry>();
+
+    private static long retained;
+
+    /**
+     * Get the pool key for the given classpath and encoding
+     */
+    public static String getKey(List<String> classpathElements, String encoding) {
+        Fingerprint fingerprint = new Fingerprint().putString(encoding);
+        for (String element : classpathElements) {
+            File file = new File(element);
+            // directories are listed on demand and don't need to be part of the key
+            if (file.isFile()) {
+                fingerprint.putFile(file);
+            } else {
+                fingerprint.putString(file.getAbsolutePath());
+            }
+        }
+        return fingerprint.hash();
+    }
+
+    /**
+     * Get the estimated retained size of a file manager for the given classpath, which is the total size
+     * of the classpath archives
+     */
+    public static long getWeight(List<String> classpathElements) {
+        long weight = 0;
+        for (String element : classpathElements) {
+            File file = new File(element);
+            if (file.isFile()) {
+                weight += file.length();
+            }
+        }
+        return weight;
+    }
+
+    /**
+     * Get an idle file manager for the given key or a new one
+     */
+    public static synchronized StandardJavaFileManager acquire(JavaCompiler compiler, String key) {
+        Iterator<Entry> entries = idle.descendingIterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (entry.key.equals(key)) {
+                entries.remove();
+                retained -= entry.weight;
+                return entry.fileManager;
+            }
+        }
+        return compiler.getStandardFileManager(null, null, null);
+    }
+
+    /**
+     * Return the given file manager to the pool and close the least recently used file managers
+     * exceeding the given limit
+     *
+     * @param maxRetained maximum total weight of idle file managers
+     */
+    public static synchronized void release(String key, long weight, StandardJavaFileManager fileManager, long maxRetained)
+            throws IOException {
+        fileManager.flush();
+        idle.addLast(new Entry(key, weight, fileManager));
+        retained += weight;
+        while (retained > maxRetained && !idle.isEmpty()) {
+            Entry entry = idle.removeFirst();
+            retained -= entry.weight;
+            entry.fileManager.close();
+        }
+    }
+
+    /**
+     * Close all idle file managers
+     */
+    public static synchronized void clear() throws IOException {
+        while (!idle.isEmpty()) {
+            Entry entry = idle.removeFirst();
+            retained -= entry.weight;
+            entry.fileManager.close();
+        }
+    }
+
+    private FileManagerPool() {}
+
+}
@@ -7,10 +7,26 @@ package com.mysema.maven.apt;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.common.collect.Sets;
-import com.google.common.io.Files;
 import org.apache.commons.io.FileUtils;
 
 /**
@@ -18,50 +34,370 @@ import org.apache.commons.io.FileUtils;
  */
 public class FileSync {
 
-    public static void syncFiles(boolean deleteFilesInTargetDirectory, File source, File target) throws IOException {
-        Set<String> sourceFiles = Sets.newHashSet(source.list());
-        Set<String> targetFiles = Sets.newHashSet(target.list());
+    /**
+     * Sync the files of the source directory into the target directory using the manifest of the previous sync
+     *
+     * <p>Only the source files are read for comparison, unless the target file was changed after the previous
+     * sync. The deletion of target files that are not in the source directory is limited to the files of the
+     * previous sync, or covers the whole target directory, if no manifest is available. Target files with
+     * unchanged content are not touched, so that they keep their inodes and modification times.</p>
+     *
+     * @param deleteFilesInTargetDirectory delete target files that are not in the source directory, only the
+     *        files of the previous sync if a manifest is available, so that other files of the target directory
+     *        are kept
+     * @param source source directory
+     * @param target target directory
+     * @param manifestFile file of the manifest, which is replaced with the manifest of this sync
+     * @return counts of the synced files
+     */
+    public static Result syncFiles(boolean deleteFilesInTargetDirectory, File source, File target, File manifestFile)
+            throws IOException {
+        return syncFiles(deleteFilesInTargetDirectory, source, target, manifestFile, 1);
+    }
+
+    /**
+     * Sync the files of the source directory into the target directory using the manifest of the previous sync,
+     * comparing and moving files with the given amount of threads
+     *
+     * @param deleteFilesInTargetDirectory delete target files that are not in the source directory, only the
+     *        files of the previous sync if a manifest is available, so that other files of the target directory
+     *        are kept
+     * @param source source directory
+     * @param target target directory
+     * @param manifestFile file of the manifest, which is replaced with the manifest of this sync
+     * @param parallelism amount of threads, 1 for syncing in the calling thread
+     * @return counts of the synced files
+     */
+    public static Result syncFiles(boolean deleteFilesInTargetDirectory, File source, File target, File manifestFile,
+            int parallelism) throws IOException {
+        SyncManifest previous = SyncManifest.load(manifestFile);
+        manifestFile.delete();
+        SyncManifest manifest = new SyncManifest();
+        Result result = new Result();
+        final Path sourcePath = source.toPath();
+        final Map<String, Path> sourceFiles = new TreeMap<String, Path>();
+        final Set<String> sourceDirectories = new HashSet<String>();
+        Files.walkFileTree(sourcePath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                sourceDirectories.add(relativize(sourcePath, dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                sourceFiles.put(relativize(sourcePath, file), file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
 
-        // remove files from target that are not in source
         if (deleteFilesInTargetDirectory) {
-            for (String targetFile : targetFiles) {
-                if (!sourceFiles.contains(targetFile)) {
-                    deleteFile(new File(target, targetFile));
+            if (previous != null) {
+                Set<String> removed = new HashSet<String>(previous.getPaths());
+                removed.removeAll(sourceFiles.keySet());
+                deleteFiles(target, removed, result.removed);
+            } else {
+                deleteFilesNotInSource(sourceFiles.keySet(), sourceDirectories, target.toPath(), result);
+            }
+        } else if (previous != null) {
+            manifest.putAll(previous);
+        }
+
+        // each target directory is created once instead of per file
+        for (String directory : new TreeSet<String>(sourceDirectories)) {
+            Files.createDirectories(new File(target, directory).toPath());
+        }
+
+        List<Map.Entry<String, Path>> entries = new ArrayList<Map.Entry<String, Path>>(sourceFiles.entrySet());
+        SyncTask task = new SyncTask(entries, 0, entries.size(), target, previous, manifest, result);
+        if (parallelism > 1 && entries.size() > SyncTask.THRESHOLD) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(task);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            task.sync();
+        }
+        manifest.store(manifestFile);
+        return result;
+    }
+
+    private static void syncFile(String path, Path file, File target, SyncManifest previous, SyncManifest manifest,
+            Result result) throws IOException {
+        File file2 = new File(target, path);
+        long hash = SyncManifest.hash(file.toFile());
+        SyncManifest.Entry previousEntry = previous != null ? previous.get(path) : null;
+        boolean same;
+        if (previousEntry != null && previousEntry.isCurrent(file2)) {
+            same = previousEntry.getHash() == hash;
+        } else {
+            same = file2.isFile() && file2.length() == Files.size(file) && SyncManifest.hash(file2) == hash;
+        }
+        if (same) {
+            result.unchanged.incrementAndGet();
+        } else {
+            boolean exists = file2.exists();
+            Files.move(file, file2.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            (exists ? result.modified : result.added).add(path);
+        }
+        manifest.put(path, file2, hash);
+    }
+
+    private static void deleteFilesNotInSource(final Set<String> sourceFiles, final Set<String> sourceDirectories,
+            final Path target, final Result result) throws IOException {
+        Files.walkFileTree(target, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (sourceDirectories.contains(relativize(target, dir))) {
+                    return FileVisitResult.CONTINUE;
                 }
+                for (Object file : FileUtils.listFiles(dir.toFile(), null, true)) {
+                    result.removed.add(relativize(target, ((File) file).toPath()));
+                }
+                FileUtils.deleteDirectory(dir.toFile());
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String path = relativize(target, file);
+                if (!sourceFiles.contains(path)) {
+                    Files.delete(file);
+                    result.removed.add(path);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String relativize(Path directory, Path file) {
+        return directory.relativize(file).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Task syncing a range of source files, which is split up until it is below the threshold
+     */
+    private static class SyncTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int THRESHOLD = 64;
+
+        private final List<Map.Entry<String, Path>> entries;
+
+        private final int from, to;
+
+        private final File target;
+
+        private final SyncManifest previous, manifest;
+
+        private final Result result;
+
+        SyncTask(List<Map.Entry<String, Path>> entries, int from, int to, File target, SyncManifest previous,
+                SyncManifest manifest, Result result) {
+            this.entries = entries;
+            this.from = from;
+            this.to = to;
+            this.target = target;
+            this.previous = previous;
+            this.manifest = manifest;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SyncTask(entries, from, middle, target, previous, manifest, result),
+                          new SyncTask(entries, middle, to, target, previous, manifest, result));
             }
         }
 
-        for (String sourceFile : sourceFiles) {
+        void sync() throws IOException {
+            for (int i = from; i < to; i++) {
+                syncFile(entries.get(i).getKey(), entries.get(i).getValue(), target, previous, manifest, result);
+            }
+        }
+
+    }
+
+    /**
+     * Wrapper for IOExceptions thrown inside of sync tasks
+     */
+    private static class UncheckedIOException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        UncheckedIOException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+
+    }
+
+    /**
+     * Move the files of the source directory into the target directory. Files that already exist
+     * in the target are kept.
+     *
+     * @param source source directory
+     * @param target target directory
+     * @return relative paths of files that exist in both directories with different content
+     */
+    public static List<String> mergeFiles(File source, File target) throws IOException {
+        List<String> conflicts = new ArrayList<String>();
+        mergeFiles(source, target, "", conflicts);
+        return conflicts;
+    }
+
+    private static void mergeFiles(File source, File target, String path, List<String> conflicts) throws IOException {
+        for (String sourceFile : source.list()) {
             File file = new File(source, sourceFile);
             File file2 = new File(target, sourceFile);
-            if (file.isFile()) {
-                copyIfChanged(file, file2);
-            } else {
-                file2.mkdir();
-                syncFiles(deleteFilesInTargetDirectory, file, file2);
+            if (file.isDirectory()) {
+                file2.mkdirs();
+                mergeFiles(file, file2, path + sourceFile + "/", conflicts);
+            } else if (!file2.exists()) {
+                if (!file.renameTo(file2)) {
+                    Files.move(file.toPath(), file2.toPath());
+                }
+            } else if (!isSame(file, file2)) {
+                conflicts.add(path + sourceFile);
             }
         }
     }
 
-    private static void copyIfChanged(File source, File target) throws IOException {
-        if (target.exists()) {
-            if (source.length() == target.length() && FileUtils.checksumCRC32(source) == FileUtils.checksumCRC32(target)) {
-                return;
-            } else {
-                target.delete();
+    /**
+     * Delete the given files from the target directory and remove directories left empty
+     *
+     * @param target target directory
+     * @param relativePaths paths of the files relative to target
+     * @return amount of deleted files
+     */
+    public static int deleteFiles(File target, Collection<String> relativePaths) {
+        List<String> deleted = new ArrayList<String>();
+        deleteFiles(target, relativePaths, deleted);
+        return deleted.size();
+    }
+
+    private static void deleteFiles(File target, Collection<String> relativePaths, Collection<String> deleted) {
+        for (String relativePath : relativePaths) {
+            File file = new File(target, relativePath);
+            if (file.delete()) {
+                deleted.add(relativePath);
+                File directory = file.getParentFile();
+                while (!directory.equals(target) && directory.delete()) {
+                    directory = directory.getParentFile();
+                }
             }
         }
-        if (!source.renameTo(target)) {
-            Files.move(source, target);
+    }
+
+    /**
+     * Delete the files of the target directory that are not contained in the given files and remove
+     * directories left empty
+     *
+     * @param target target directory
+     * @param files files to keep
+     * @return amount of deleted files
+     */
+    public static int retainFiles(File target, Set<File> files) throws IOException {
+        int deleted = 0;
+        for (String targetFile : target.list()) {
+            File file = new File(target, targetFile);
+            if (file.isDirectory()) {
+                deleted += retainFiles(file, files);
+                String[] remaining = file.list();
+                if (remaining != null && remaining.length == 0) {
+                    file.delete();
+                }
+            } else if (!files.contains(file) && file.delete()) {
+                deleted++;
+            }
         }
+        return deleted;
     }
 
-    private static void deleteFile(File file) throws IOException {
-        if (file.isDirectory()) {
-            FileUtils.deleteDirectory(file);
-        } else {
-            file.delete();
+    private static boolean isSame(File source, File target) throws IOException {
+        return source.length() == target.length() && FileUtils.checksumCRC32(source) == FileUtils.checksumCRC32(target);
+    }
+
+    /**
+     * Change set and counts of the files handled by a sync, paths are relative to the target directory
+     * with / as separator
+     */
+    public static final class Result {
+
+        private final Set<String> added = new ConcurrentSkipListSet<String>(),
+                modified = new ConcurrentSkipListSet<String>(), removed = new ConcurrentSkipListSet<String>();
+
+        private final AtomicInteger unchanged = new AtomicInteger();
+
+        /**
+         * @return files which didn't exist in the target directory before
+         */
+        public Set<String> getAdded() {
+            return Collections.unmodifiableSet(added);
         }
+
+        /**
+         * @return files of the target directory which were replaced with different content
+         */
+        public Set<String> getModified() {
+            return Collections.unmodifiableSet(modified);
+        }
+
+        /**
+         * @return files deleted from the target directory
+         */
+        public Set<String> getRemoved() {
+            return Collections.unmodifiableSet(removed);
+        }
+
+        /**
+         * @return added, modified and removed files
+         */
+        public Set<String> getChanges() {
+            Set<String> changes = new TreeSet<String>(added);
+            changes.addAll(modified);
+            changes.addAll(removed);
+            return changes;
+        }
+
+        /**
+         * @return amount of new or changed files moved into the target directory
+         */
+        public int getCopied() {
+            return added.size() + modified.size();
+        }
+
+        /**
+         * @return amount of files with unchanged content
+         */
+        public int getUnchanged() {
+            return unchanged.get();
+        }
+
+        /**
+         * @return amount of files deleted from the target directory
+         */
+        public int getDeleted() {
+            return removed.size();
+        }
+
     }
 
     private FileSync() {}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Fingerprint accumulates a hash of the inputs of a processor execution
+ *
+ * <p>Files are identified by path, length and modification time, directories by the
+ * same attributes of all contained files. Content fingerprints, which stay the same on other machines,
+ * identify files by their content and directories by the relative paths and content of all contained
+ * files.</p>
+ */
+public final class Fingerprint {
+
+    /**
+     * Content hash of a file with the stamps of the file when it was hashed
+     */
+    private static final class ContentHash {
+
+        private final long length, lastModified;
+
+        private final HashCode hash;
+
+        ContentHash(long length, long lastModified, HashCode hash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+    }
+
+    // content hashes of recently hashed files, so that classpath archives are hashed once per session
+    private static final Cache<String, ContentHash> contentHashes = CacheBuilder.newBuilder()
+            .maximumSize(10000)
+            .build();
+
+    private final Hasher hasher = Hashing.sha1().newHasher();
+
+    public Fingerprint putString(String value) {
+        if (value != null) {
+            hasher.putInt(value.length()).putString(value, Charsets.UTF_8);
+        } else {
+            hasher.putInt(-1);
+        }
+        return this;
+    }
+
+    public Fingerprint putBoolean(boolean value) {
+        hasher.putBoolean(value);
+        return this;
+    }
+
+    public Fingerprint putStrings(Collection<String> values) {
+        if (values != null) {
+            List<String> sorted = new ArrayList<String>(values);
+            Collections.sort(sorted);
+            hasher.putInt(sorted.size());
+            for (String value : sorted) {
+                putString(value);
+            }
+        } else {
+            hasher.putInt(-1);
+        }
+        return this;
+    }
+
+    public Fingerprint putMap(Map<String, String> map) {
+        if (map != null) {
+            Map<String, String> sorted = new TreeMap<String, String>(map);
+            hasher.putInt(sorted.size());
+            for (Map.Entry<String, String> entry : sorted.entrySet()) {
+                putString(entry.getKey());
+                putString(entry.getValue());
+            }
+        } else {
+            hasher.putInt(-1);
+        }
+        return this;
+    }
+
+    public Fingerprint putFiles(Collection<File> files) {
+        List<String> paths = new ArrayList<String>(files.size());
+        for (File file : files) {
+            paths.add(file.getAbsolutePath());
+        }
+        Collections.sort(paths);
+        hasher.putInt(paths.size());
+        for (String path : paths) {
+            putFile(new File(path));
+        }
+        return this;
+    }
+
+    public Fingerprint putFile(File file) {
+        putString(file.getAbsolutePath());
+        if (file.isDirectory()) {
+            String[] children = file.list();
+            if (children != null) {
+                List<File> files = new ArrayList<File>(children.length);
+                for (String child : children) {
+                    files.add(new File(file, child));
+                }
+                putFiles(files);
+            }
+        } else {
+            hasher.putLong(file.length()).putLong(file.lastModified());
+        }
+        return this;
+    }
+
+    /**
+     * Put the content of the given file or the relative paths and content of all files in the given directory
+     */
+    public Fingerprint putContent(File file) throws IOException {
+        if (file.isDirectory()) {
+            String[] children = file.list();
+            if (children != null) {
+                Arrays.sort(children);
+                hasher.putInt(children.length);
+                for (String child : children) {
+                    putString(child);
+                    putContent(new File(file, child));
+                }
+            }
+        } else if (file.exists()) {
+            hasher.putBytes(getContentHash(file).asBytes());
+        } else {
+            hasher.putInt(-1);
+        }
+        return this;
+    }
+
+    private static HashCode getContentHash(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        ContentHash contentHash = contentHashes.getIfPresent(path);
+        if (contentHash == null || contentHash.length != length || contentHash.lastModified != lastModified) {
+            contentHash = new ContentHash(length, lastModified, Files.hash(file, Hashing.sha1()));
+            contentHashes.put(path, contentHash);
+        }
+        return contentHash.hash;
+    }
+
+    public String hash() {
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Check whether the given hash equals the one stored in the given file
+     */
+    public static boolean matches(String hash, File file) throws IOException {
+        return file.exists() && hash.equals(Files.toString(file, Charsets.UTF_8).trim());
+    }
+
+    public static void store(String hash, File file) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(hash, file, Charsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * HttpCacheStorage stores entries on a remote build cache server
+ *
+ * <p>Entries are read with GET and written with PUT requests to the base URL followed by the key, which
+ * is the protocol of the HTTP build caches of Gradle and of the common cache servers. Missing entries
+ * are answered with 404. Credentials of the URL are sent with basic authentication. Entries are zipped
+ * while uploading and extracted while downloading, without buffering them in memory or on disk.</p>
+ */
+public class HttpCacheStorage implements CacheStorage {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String baseUrl;
+
+    private final String authorization;
+
+    private final int timeout;
+
+    /**
+     * @param url base URL of the cache
+     * @param timeout connect and read timeout in milliseconds
+     */
+    public HttpCacheStorage(String url, int timeout) {
+        String userInfo = null;
+        try {
+            userInfo = new URL(url).getUserInfo();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid cache URL " + url, e);
+        }
+        this.authorization = userInfo != null
+                ? "Basic " + BaseEncoding.base64().encode(userInfo.getBytes(Charsets.UTF_8)) : null;
+        this.baseUrl = url.endsWith("/") ? url : url + "/";
+        this.timeout = timeout;
+    }
+
+    private HttpURLConnection openConnection(String key, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + key).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setUseCaches(false);
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        return connection;
+    }
+
+    @Override
+    public boolean restore(String key, File target) throws IOException {
+        HttpURLConnection connection = openConnection(key, "GET");
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND) {
+                return false;
+            } else if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("GET of cache entry " + key + " failed with status " + status);
+            }
+            InputStream in = new BufferedInputStream(connection.getInputStream(), BUFFER_SIZE);
+            try {
+                BuildCache.unzip(in, target);
+            } finally {
+                in.close();
+            }
+            return true;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Override
+    public void store(String key, File source) throws IOException {
+        HttpURLConnection connection = openConnection(key, "PUT");
+        try {
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(BUFFER_SIZE);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            OutputStream out = new BufferedOutputStream(connection.getOutputStream(), BUFFER_SIZE);
+            try {
+                BuildCache.zip(source, out);
+            } finally {
+                out.close();
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("PUT of cache entry " + key + " failed with status " + status);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+}
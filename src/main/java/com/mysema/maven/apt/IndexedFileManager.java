@@ -0,0 +1,390 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.ForwardingJavaFileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+import com.google.common.io.CharStreams;
+
+/**
+ * IndexedFileManager answers the classpath lookups of javac with the help of a {@link ClasspathIndex}
+ *
+ * <p>Only the archives which contain a requested package are opened, instead of all archives of the
+ * classpath. Directories of the classpath are listed on each lookup. Results are returned in classpath
+ * order, so that the first occurrence of a class on the classpath is used like with the standard file
+ * manager. The classpath location of the delegate is restricted to the directories of the classpath.</p>
+ */
+public class IndexedFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+    private final List<File> classpath;
+
+    private final ClasspathIndex index;
+
+    private final Charset charset;
+
+    private final Map<File, Archive> archives = new HashMap<File, Archive>();
+
+    /**
+     * @param fileManager file manager to delegate to
+     * @param classpath classpath elements
+     * @param index index of the archives of the classpath
+     * @param charset charset of sources in archives
+     */
+    public IndexedFileManager(StandardJavaFileManager fileManager, List<File> classpath, ClasspathIndex index,
+            Charset charset) throws IOException {
+        super(fileManager);
+        this.classpath = classpath;
+        this.index = index;
+        this.charset = charset;
+        List<File> directories = new ArrayList<File>();
+        for (File element : classpath) {
+            if (!index.isIndexed(element)) {
+                directories.add(element);
+            }
+        }
+        fileManager.setLocation(StandardLocation.CLASS_PATH, directories);
+    }
+
+    @Override
+    public Iterable<JavaFileObject> list(Location location, String packageName, Set<Kind> kinds, boolean recurse)
+            throws IOException {
+        if (location != StandardLocation.CLASS_PATH) {
+            return super.list(location, packageName, kinds, recurse);
+        }
+        String packagePath = packageName.replace('.', '/');
+        List<JavaFileObject> files = new ArrayList<JavaFileObject>();
+        for (File element : classpath) {
+            if (index.isIndexed(element)) {
+                if (recurse) {
+                    for (String archivePackage : index.getPackages(element)) {
+                        if (packagePath.isEmpty() || archivePackage.equals(packagePath)
+                                || archivePackage.startsWith(packagePath + "/")) {
+                            getArchive(element).list(archivePackage, kinds, files);
+                        }
+                    }
+                } else if (index.getArchives(packagePath).contains(element)) {
+                    getArchive(element).list(packagePath, kinds, files);
+                }
+            } else {
+                listDirectory(new File(element, packagePath), packageName, kinds, recurse, files);
+            }
+        }
+        return files;
+    }
+
+    private void listDirectory(File directory, String packageName, Set<Kind> kinds, boolean recurse,
+            List<JavaFileObject> files) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            String name = child.getName();
+            if (child.isDirectory()) {
+                if (recurse) {
+                    listDirectory(child, packageName.isEmpty() ? name : packageName + "." + name, kinds, true, files);
+                }
+                continue;
+            }
+            Kind kind = getKind(name);
+            if (kinds.contains(kind)) {
+                String simpleName = name.substring(0, name.length() - kind.extension.length());
+                JavaFileObject file = fileManager.getJavaFileObjects(child).iterator().next();
+                files.add(new DirectoryFileObject(file, packageName.isEmpty() ? simpleName : packageName + "." + simpleName));
+            }
+        }
+    }
+
+    @Override
+    public String inferBinaryName(Location location, JavaFileObject file) {
+        if (file instanceof ArchiveFileObject) {
+            return ((ArchiveFileObject) file).binaryName;
+        } else if (file instanceof DirectoryFileObject) {
+            return ((DirectoryFileObject) file).binaryName;
+        }
+        return super.inferBinaryName(location, file);
+    }
+
+    @Override
+    public boolean isSameFile(FileObject a, FileObject b) {
+        if (a instanceof DirectoryFileObject) {
+            a = ((DirectoryFileObject) a).getDelegate();
+        }
+        if (b instanceof DirectoryFileObject) {
+            b = ((DirectoryFileObject) b).getDelegate();
+        }
+        if (a instanceof ArchiveFileObject || b instanceof ArchiveFileObject) {
+            return a.toUri().equals(b.toUri());
+        }
+        return super.isSameFile(a, b);
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForInput(Location location, String className, Kind kind) throws IOException {
+        if (location != StandardLocation.CLASS_PATH) {
+            return super.getJavaFileForInput(location, className, kind);
+        }
+        int separator = className.lastIndexOf('.');
+        String packageName = separator > -1 ? className.substring(0, separator) : "";
+        return (JavaFileObject) getFileForInput(location, packageName, className.substring(separator + 1) + kind.extension);
+    }
+
+    @Override
+    public FileObject getFileForInput(Location location, String packageName, String relativeName) throws IOException {
+        if (location != StandardLocation.CLASS_PATH) {
+            return super.getFileForInput(location, packageName, relativeName);
+        }
+        String packagePath = packageName.replace('.', '/');
+        String path = packagePath.isEmpty() ? relativeName : packagePath + "/" + relativeName;
+        String entryPackage = path.substring(0, Math.max(path.lastIndexOf('/'), 0));
+        for (File element : classpath) {
+            if (index.isIndexed(element)) {
+                if (index.getArchives(entryPackage).contains(element)) {
+                    ZipEntry entry = getArchive(element).zipFile.getEntry(path);
+                    if (entry != null) {
+                        return getArchive(element).newFileObject(entry);
+                    }
+                }
+            } else {
+                File file = new File(element, path);
+                if (file.isFile()) {
+                    return fileManager.getJavaFileObjects(file).iterator().next();
+                }
+            }
+        }
+        return null;
+    }
+
+    private Archive getArchive(File file) throws IOException {
+        Archive archive = archives.get(file);
+        if (archive == null) {
+            archive = new Archive(file);
+            archives.put(file, archive);
+        }
+        return archive;
+    }
+
+    /**
+     * Close the opened archives, the delegate stays open
+     */
+    public void closeArchives() throws IOException {
+        for (Archive archive : archives.values()) {
+            archive.zipFile.close();
+        }
+        archives.clear();
+    }
+
+    private static Kind getKind(String name) {
+        for (Kind kind : Kind.values()) {
+            if (kind != Kind.OTHER && name.endsWith(kind.extension)) {
+                return kind;
+            }
+        }
+        return Kind.OTHER;
+    }
+
+    /**
+     * Opened archive with its entries grouped by package
+     */
+    private final class Archive {
+
+        private final File file;
+
+        private final ZipFile zipFile;
+
+        private final Map<String, List<ZipEntry>> packages = new HashMap<String, List<ZipEntry>>();
+
+        Archive(File file) throws IOException {
+            this.file = file;
+            this.zipFile = new ZipFile(file);
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory()) {
+                    String name = entry.getName();
+                    String packagePath = name.substring(0, Math.max(name.lastIndexOf('/'), 0));
+                    List<ZipEntry> packageEntries = packages.get(packagePath);
+                    if (packageEntries == null) {
+                        packageEntries = new ArrayList<ZipEntry>();
+                        packages.put(packagePath, packageEntries);
+                    }
+                    packageEntries.add(entry);
+                }
+            }
+        }
+
+        void list(String packagePath, Set<Kind> kinds, List<JavaFileObject> files) {
+            List<ZipEntry> entries = packages.get(packagePath);
+            for (ZipEntry entry : entries != null ? entries : Collections.<ZipEntry> emptyList()) {
+                if (kinds.contains(getKind(entry.getName()))) {
+                    files.add(newFileObject(entry));
+                }
+            }
+        }
+
+        ArchiveFileObject newFileObject(ZipEntry entry) {
+            String name = entry.getName();
+            Kind kind = getKind(name);
+            String binaryName = name.substring(0, name.length() - kind.extension.length()).replace('/', '.');
+            return new ArchiveFileObject(this, entry, kind, binaryName);
+        }
+
+    }
+
+    /**
+     * Entry of an archive
+     */
+    private final class ArchiveFileObject implements JavaFileObject {
+
+        private final Archive archive;
+
+        private final ZipEntry entry;
+
+        private final Kind kind;
+
+        private final String binaryName;
+
+        ArchiveFileObject(Archive archive, ZipEntry entry, Kind kind, String binaryName) {
+            this.archive = archive;
+            this.entry = entry;
+            this.kind = kind;
+            this.binaryName = binaryName;
+        }
+
+        @Override
+        public URI toUri() {
+            return toEntryUri(archive.file, entry);
+        }
+
+        @Override
+        public String getName() {
+            return archive.file.getPath() + "(" + entry.getName() + ")";
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return archive.zipFile.getInputStream(entry);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Reader openReader(boolean ignoreEncodingErrors) throws IOException {
+            return new InputStreamReader(openInputStream(), charset);
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) throws IOException {
+            Reader reader = openReader(ignoreEncodingErrors);
+            try {
+                return CharStreams.toString(reader);
+            } finally {
+                reader.close();
+            }
+        }
+
+        @Override
+        public Writer openWriter() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLastModified() {
+            return entry.getTime();
+        }
+
+        @Override
+        public boolean delete() {
+            return false;
+        }
+
+        @Override
+        public Kind getKind() {
+            return kind;
+        }
+
+        @Override
+        public boolean isNameCompatible(String simpleName, Kind kind) {
+            String name = entry.getName();
+            return this.kind == kind && (name.equals(simpleName + kind.extension)
+                    || name.endsWith("/" + simpleName + kind.extension));
+        }
+
+        @Override
+        public NestingKind getNestingKind() {
+            return null;
+        }
+
+        @Override
+        public Modifier getAccessLevel() {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+
+    }
+
+    private static URI toEntryUri(File archive, ZipEntry entry) {
+        try {
+            return new URI("jar:" + archive.toURI() + "!/" + new URI(null, entry.getName(), null).getRawPath());
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * File of a classpath directory with its binary name
+     */
+    private static final class DirectoryFileObject extends ForwardingJavaFileObject<JavaFileObject> {
+
+        private final String binaryName;
+
+        DirectoryFileObject(JavaFileObject file, String binaryName) {
+            super(file);
+            this.binaryName = binaryName;
+        }
+
+        JavaFileObject getDelegate() {
+            return fileObject;
+        }
+
+    }
+
+}
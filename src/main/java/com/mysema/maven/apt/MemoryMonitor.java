@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.tools.JavaCompiler.CompilationTask;
+
+/**
+ * MemoryMonitor samples the heap usage, the garbage collection time and the bytes allocated by each
+ * processing round through the TaskListener of javac, and fails tasks exceeding a soft limit of the heap
+ *
+ * <p>The events of a task are delivered by the thread running it, so the allocated bytes are those of
+ * javac and the processors of the task. Heap usage and collection time are shared by everything running
+ * in the JVM, rounds of concurrent tasks are merged by their index. The limit applies to the heap in use
+ * after the latest collections, which excludes garbage, and is checked on each event of javac.</p>
+ */
+public class MemoryMonitor {
+
+    private static final String ROUND = "ANNOTATION_PROCESSING_ROUND";
+
+    private final long softLimit;
+
+    private final List<Round> rounds = new ArrayList<Round>();
+
+    private volatile String limitExceeded;
+
+    /**
+     * Memory statistics of a round
+     */
+    public static final class Round {
+
+        private long allocatedBytes;
+
+        private long heapUsed;
+
+        private long heapLive;
+
+        private long gcTime;
+
+        /**
+         * Get the bytes allocated by the threads running the round, -1 if not supported by the JVM
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * Get the heap usage at the end of the round in bytes, including garbage
+         */
+        public long getHeapUsed() {
+            return heapUsed;
+        }
+
+        /**
+         * Get the heap usage after the latest collections at the end of the round in bytes
+         */
+        public long getHeapLive() {
+            return heapLive;
+        }
+
+        /**
+         * Get the time spent in garbage collection during the round in milliseconds
+         */
+        public long getGcTime() {
+            return gcTime;
+        }
+
+    }
+
+    /**
+     * Listener state of a single task
+     */
+    private final class Listener implements InvocationHandler {
+
+        private int round;
+
+        private long allocatedStart;
+
+        private long gcStart;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if (name.equals("equals")) {
+                    return proxy == args[0];
+                } else if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return "MemoryMonitor listener";
+            }
+            Object event = args[0];
+            String kind = String.valueOf(event.getClass().getMethod("getKind").invoke(event));
+            if (kind.equals(ROUND)) {
+                if (name.equals("started")) {
+                    allocatedStart = getAllocatedBytes();
+                    gcStart = getGcTime();
+                } else if (name.equals("finished")) {
+                    long allocated = getAllocatedBytes();
+                    addRound(round++, allocated >= 0 && allocatedStart >= 0 ? allocated - allocatedStart : -1,
+                            ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(), getHeapLive(),
+                            getGcTime() - gcStart);
+                }
+            }
+            checkLimit(round);
+            return null;
+        }
+
+    }
+
+    /**
+     * @param softLimit limit of the heap in use after collection in bytes, 0 for no limit
+     */
+    public MemoryMonitor(long softLimit) {
+        this.softLimit = softLimit;
+    }
+
+    /**
+     * Register a listener for the given task, which needs to be a JavacTask
+     *
+     * @return false, if the task doesn't support listeners
+     */
+    public boolean attach(CompilationTask task) {
+        return TaskProfiler.addTaskListener(task, new Listener());
+    }
+
+    private void checkLimit(int round) {
+        if (softLimit <= 0) {
+            return;
+        }
+        long live = getHeapLive();
+        if (live > softLimit) {
+            String message = "Heap in use of " + megabytes(live) + " MB exceeds the soft limit of "
+                    + megabytes(softLimit) + " MB in round " + (round + 1) + " of annotation processing. "
+                    + "Increase the maximum heap of the build with -Xmx in MAVEN_OPTS, raise heapSoftLimit, "
+                    + "or reduce the memory demand with fewer maxConcurrentExecutions or a lower executionMemoryBudget";
+            limitExceeded = message;
+            throw new IllegalStateException(message);
+        }
+    }
+
+    private synchronized void addRound(int index, long allocatedBytes, long heapUsed, long heapLive, long gcTime) {
+        while (rounds.size() <= index) {
+            rounds.add(new Round());
+        }
+        Round round = rounds.get(index);
+        round.allocatedBytes = round.allocatedBytes >= 0 && allocatedBytes >= 0 ? round.allocatedBytes + allocatedBytes : -1;
+        round.heapUsed = Math.max(round.heapUsed, heapUsed);
+        round.heapLive = Math.max(round.heapLive, heapLive);
+        // collections are shared by concurrent rounds
+        round.gcTime = Math.max(round.gcTime, gcTime);
+    }
+
+    /**
+     * Get the statistics of the rounds recorded so far
+     */
+    public synchronized List<Round> getRounds() {
+        return new ArrayList<Round>(rounds);
+    }
+
+    /**
+     * Get the message of the exceeded limit, null if the limit wasn't exceeded
+     */
+    public String getLimitExceeded() {
+        return limitExceeded;
+    }
+
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+            if (threadBean.isThreadAllocatedMemorySupported() && threadBean.isThreadAllocatedMemoryEnabled()) {
+                return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static long getGcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(bean.getCollectionTime(), 0);
+        }
+        return time;
+    }
+
+    private static long getHeapLive() {
+        long live = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                live += (usage != null ? usage : pool.getUsage()).getUsed();
+            }
+        }
+        return live;
+    }
+
+    static long megabytes(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * ProcessingWatchdog keeps track of the threads and processing rounds of the tasks of an execution and
+ * cancels the tasks cooperatively
+ *
+ * <p>javac has no means to cancel a running task, so cancellation is checked by the wrapped processors
+ * at the start of each round, which ends the task with an exception. Processors which don't return from
+ * a round are only interrupted, their threads are daemon threads which don't keep the JVM alive.</p>
+ */
+public class ProcessingWatchdog implements ThreadFactory {
+
+    private final String name;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    private final Map<Thread, TaskState> tasks = new ConcurrentHashMap<Thread, TaskState>();
+
+    private volatile boolean cancelled;
+
+    /**
+     * @param name prefix of the thread names
+     */
+    public ProcessingWatchdog(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        tasks.put(thread, new TaskState());
+        return thread;
+    }
+
+    /**
+     * Wrap the given processor to check for cancellation and to record the rounds
+     */
+    public Processor watch(Processor processor) {
+        return new WatchedProcessor(processor);
+    }
+
+    /**
+     * Make the tasks fail at the start of their next round
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Get the current round and the stack of the threads of the tasks
+     */
+    public String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Thread, TaskState> entry : tasks.entrySet()) {
+            Thread thread = entry.getKey();
+            if (!thread.isAlive()) {
+                continue;
+            }
+            builder.append('"').append(thread.getName()).append("\" ").append(thread.getState());
+            int round = entry.getValue().round;
+            if (round > 0) {
+                builder.append(" in round ").append(round);
+            }
+            builder.append('\n');
+            for (StackTraceElement element : thread.getStackTrace()) {
+                builder.append("\tat ").append(element).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Round of the task of a thread, the processors of a round share the round environment
+     */
+    private static final class TaskState {
+
+        private volatile int round;
+
+        private RoundEnvironment roundEnv;
+
+    }
+
+    /**
+     * Processor which checks for cancellation at the start of each round
+     */
+    private final class WatchedProcessor extends ForwardingProcessor {
+
+        WatchedProcessor(Processor delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            if (cancelled) {
+                throw new CancellationException("Processing was cancelled");
+            }
+            TaskState task = tasks.get(Thread.currentThread());
+            if (task != null && task.roundEnv != roundEnv) {
+                task.roundEnv = roundEnv;
+                task.round++;
+            }
+            return super.process(annotations, roundEnv);
+        }
+
+    }
+
+}
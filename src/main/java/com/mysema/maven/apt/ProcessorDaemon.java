@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * ProcessorDaemon runs annotation processing tasks for clients connecting through a loopback socket
+ *
+ * <p>The daemon publishes its port and an access token in a file readable only by the current user and exits
+ * after being idle for the given time. The file is created with owner-only permissions before the token is
+ * written, and the daemon refuses to start on file systems which can't restrict the access. It only depends
+ * on the JDK, so that its classpath consists of the plugin artifact alone.</p>
+ *
+ * <p>Requests consist of the token, the compiler options and the source files. The daemon answers with
+ * the diagnostics as they are reported, followed by the result and the compiler output.</p>
+ */
+public class ProcessorDaemon {
+
+    static final int DIAGNOSTIC = 1, RESULT = 2;
+
+    private final File portFile;
+
+    private final int idleTimeout;
+
+    private final String token;
+
+    private final AtomicInteger activeRequests = new AtomicInteger();
+
+    private volatile long lastRequest = System.currentTimeMillis();
+
+    private ServerSocket serverSocket;
+
+    /**
+     * @param portFile file to publish port and token in
+     * @param idleTimeout idle time in milliseconds after which the daemon exits
+     */
+    public ProcessorDaemon(File portFile, int idleTimeout) {
+        this.portFile = portFile;
+        this.idleTimeout = idleTimeout;
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        this.token = builder.toString();
+    }
+
+    /**
+     * Bind the server socket and publish the port file
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        serverSocket.setSoTimeout(Math.min(idleTimeout, 1000));
+        portFile.getParentFile().mkdirs();
+        Path tempFile = Paths.get(portFile.getPath() + ".tmp");
+        Files.deleteIfExists(tempFile);
+        createOwnerOnlyFile(tempFile);
+        Writer writer = new OutputStreamWriter(Files.newOutputStream(tempFile), "UTF-8");
+        try {
+            writer.write(serverSocket.getLocalPort() + " " + token);
+        } finally {
+            writer.close();
+        }
+        Files.move(tempFile, portFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Create an empty file which only the current user can access, the token is written only after the
+     * permissions are in place
+     *
+     * @throws IOException if the file system supports neither POSIX permissions nor ACLs
+     */
+    static void createOwnerOnlyFile(Path file) throws IOException {
+        Set<String> views = file.getFileSystem().supportedFileAttributeViews();
+        if (views.contains("posix")) {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(
+                    EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+        } else if (views.contains("acl")) {
+            Files.createFile(file);
+            try {
+                AclFileAttributeView view = Files.getFileAttributeView(file, AclFileAttributeView.class);
+                AclEntry entry = AclEntry.newBuilder()
+                        .setType(AclEntryType.ALLOW)
+                        .setPrincipal(view.getOwner())
+                        .setPermissions(AclEntryPermission.values())
+                        .build();
+                view.setAcl(Collections.singletonList(entry));
+            } catch (IOException e) {
+                Files.delete(file);
+                throw e;
+            }
+        } else {
+            throw new IOException("Unable to restrict the access to " + file + " to the current user");
+        }
+    }
+
+    /**
+     * Serve requests until the daemon is idle for longer than the idle timeout
+     */
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketTimeoutException e) {
+                    if (activeRequests.get() == 0 && System.currentTimeMillis() - lastRequest > idleTimeout) {
+                        return;
+                    }
+                    continue;
+                }
+                activeRequests.incrementAndGet();
+                Thread thread = new Thread("apt-daemon-request") {
+                    @Override
+                    public void run() {
+                        try {
+                            handle(socket);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                        } finally {
+                            lastRequest = System.currentTimeMillis();
+                            activeRequests.decrementAndGet();
+                        }
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } finally {
+            stop();
+        }
+    }
+
+    public void stop() throws IOException {
+        portFile.delete();
+        serverSocket.close();
+    }
+
+    private void handle(Socket socket) throws IOException {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            int tokenLength = in.readInt();
+            if (tokenLength != token.length()) {
+                return;
+            }
+            byte[] tokenBytes = new byte[tokenLength];
+            in.readFully(tokenBytes);
+            if (!token.equals(new String(tokenBytes, "UTF-8"))) {
+                return;
+            }
+            List<String> options = readStrings(in);
+            List<String> files = readStrings(in);
+
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+            StringWriter output = new StringWriter();
+            boolean success;
+            try {
+                List<File> sourceFiles = new ArrayList<File>(files.size());
+                for (String file : files) {
+                    sourceFiles.add(new File(file));
+                }
+                DiagnosticListener<JavaFileObject> listener = new DiagnosticListener<JavaFileObject>() {
+                    @Override
+                    public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+                        try {
+                            synchronized (out) {
+                                out.writeByte(DIAGNOSTIC);
+                                writeString(out, diagnostic.getKind().name());
+                                writeString(out, diagnostic.getSource() != null ? diagnostic.getSource().toUri().getPath() : "");
+                                out.writeLong(diagnostic.getLineNumber());
+                                out.writeLong(diagnostic.getColumnNumber());
+                                writeString(out, diagnostic.getMessage(Locale.getDefault()));
+                                out.flush();
+                            }
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                };
+                success = compiler.getTask(output, fileManager, listener, options, null,
+                        fileManager.getJavaFileObjectsFromFiles(sourceFiles)).call();
+            } catch (RuntimeException e) {
+                e.printStackTrace(new PrintWriter(output));
+                success = false;
+            } finally {
+                fileManager.close();
+            }
+            synchronized (out) {
+                out.writeByte(RESULT);
+                out.writeBoolean(success);
+                writeString(out, output.toString());
+                out.flush();
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    static List<String> readStrings(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        List<String> strings = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * Start a daemon
+     *
+     * @param args port file and idle timeout in seconds
+     */
+    public static void main(String[] args) throws IOException {
+        ProcessorDaemon daemon = new ProcessorDaemon(new File(args[0]), Integer.parseInt(args[1]) * 1000);
+        daemon.start();
+        daemon.serve();
+        System.exit(0);
+    }
+
+}
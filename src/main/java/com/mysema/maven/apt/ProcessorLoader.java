@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.Processor;
+
+import org.apache.maven.artifact.Artifact;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * ProcessorLoader instantiates the processors of an execution
+ *
+ * <p>Processors are looked up in the processor path, which lists the project classpath before the plugin
+ * artifacts like the processor path given to javac. Processors found first in the plugin artifacts are
+ * loaded by a class loader which is shared by all executions with the same plugin artifacts, keyed by
+ * their coordinates and file stamps, and by the content of snapshot archives, which may be rebuilt at the
+ * same path with the same stamps. The shared class loaders are closed at the end of the Maven session by
+ * {@link SessionCleanup}. Other processors are loaded by a class loader of the execution.</p>
+ */
+public final class ProcessorLoader implements Closeable {
+
+    private static final Map<String, URLClassLoader> shared = new HashMap<String, URLClassLoader>();
+
+    private final ClassLoader parent;
+
+    private final URLClassLoader pluginClassLoader;
+
+    private final List<String> processorPath;
+
+    private URLClassLoader executionClassLoader;
+
+    /**
+     * @param parent parent of the class loaders, the one of javac's own processor class loader
+     * @param pluginArtifacts artifacts of the plugin
+     * @param processorPath project classpath followed by the plugin artifacts
+     */
+    public ProcessorLoader(ClassLoader parent, List<Artifact> pluginArtifacts, List<String> processorPath)
+            throws IOException {
+        this.parent = parent;
+        this.pluginClassLoader = getSharedClassLoader(parent, pluginArtifacts);
+        this.processorPath = processorPath;
+    }
+
+    /**
+     * Get the key of the shared class loader for the given plugin artifacts
+     */
+    public static String getKey(List<Artifact> pluginArtifacts) throws IOException {
+        Fingerprint fingerprint = new Fingerprint();
+        for (Artifact artifact : pluginArtifacts) {
+            File file = artifact.getFile();
+            if (file != null) {
+                fingerprint.putString(artifact.getId()).putFile(file);
+                if (artifact.isSnapshot() && file.isFile()) {
+                    fingerprint.putString(Files.hash(file, Hashing.sha1()).toString());
+                }
+            }
+        }
+        return fingerprint.hash();
+    }
+
+    private static synchronized URLClassLoader getSharedClassLoader(ClassLoader parent, List<Artifact> pluginArtifacts)
+            throws IOException {
+        if (pluginArtifacts == null || pluginArtifacts.isEmpty()) {
+            return null;
+        }
+        String key = getKey(pluginArtifacts) + "@" + System.identityHashCode(parent);
+        URLClassLoader classLoader = shared.get(key);
+        if (classLoader == null) {
+            List<String> paths = new ArrayList<String>(pluginArtifacts.size());
+            for (Artifact artifact : pluginArtifacts) {
+                if (artifact.getFile() != null) {
+                    paths.add(artifact.getFile().getAbsolutePath());
+                }
+            }
+            classLoader = new URLClassLoader(toURLs(paths), parent);
+            shared.put(key, classLoader);
+        }
+        return classLoader;
+    }
+
+    /**
+     * Instantiate the processors of the given comma separated class names
+     */
+    public List<Processor> load(String processor) throws Exception {
+        List<Processor> processors = new ArrayList<Processor>();
+        for (String className : processor.split(",")) {
+            className = className.trim();
+            String resource = className.replace('.', '/') + ".class";
+            if (executionClassLoader == null) {
+                executionClassLoader = new URLClassLoader(toURLs(processorPath), parent);
+            }
+            ClassLoader classLoader = executionClassLoader;
+            URL url = executionClassLoader.findResource(resource);
+            // the plugin artifacts come last, so the first match is in them, if the shared loader has it too
+            if (url != null && pluginClassLoader != null) {
+                URL pluginUrl = pluginClassLoader.findResource(resource);
+                if (pluginUrl != null && url.toString().equals(pluginUrl.toString())) {
+                    classLoader = pluginClassLoader;
+                }
+            }
+            processors.add((Processor) classLoader.loadClass(className).newInstance());
+        }
+        return processors;
+    }
+
+    private static URL[] toURLs(List<String> paths) throws IOException {
+        URL[] urls = new URL[paths.size()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = new File(paths.get(i)).toURI().toURL();
+        }
+        return urls;
+    }
+
+    /**
+     * Close the class loader of the execution, the shared class loader stays open
+     */
+    @Override
+    public void close() throws IOException {
+        if (executionClassLoader != null) {
+            executionClassLoader.close();
+        }
+    }
+
+    /**
+     * Close all shared class loaders
+     */
+    public static synchronized void clear() throws IOException {
+        for (URLClassLoader classLoader : shared.values()) {
+            classLoader.close();
+        }
+        shared.clear();
+    }
+
+}
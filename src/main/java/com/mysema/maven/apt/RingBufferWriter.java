@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.Writer;
+
+/**
+ * RingBufferWriter keeps the last characters written to it up to a fixed capacity
+ *
+ * <p>Writes may come from several threads.</p>
+ */
+public class RingBufferWriter extends Writer {
+
+    private final char[] buffer;
+
+    private long written;
+
+    /**
+     * @param capacity maximum amount of kept characters
+     */
+    public RingBufferWriter(int capacity) {
+        this.buffer = new char[capacity];
+    }
+
+    @Override
+    public synchronized void write(char[] chars, int offset, int length) {
+        if (length > buffer.length) {
+            offset += length - buffer.length;
+            written += length - buffer.length;
+            length = buffer.length;
+        }
+        int position = (int) (written % buffer.length);
+        int first = Math.min(length, buffer.length - position);
+        System.arraycopy(chars, offset, buffer, position, first);
+        System.arraycopy(chars, offset + first, buffer, 0, length - first);
+        written += length;
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+
+    /**
+     * @return amount of characters which didn't fit into the buffer
+     */
+    public synchronized long getTruncated() {
+        return Math.max(0, written - buffer.length);
+    }
+
+    /**
+     * @return kept characters, preceded by a note about the truncated characters
+     */
+    @Override
+    public synchronized String toString() {
+        if (written <= buffer.length) {
+            return new String(buffer, 0, (int) written);
+        }
+        int position = (int) (written % buffer.length);
+        StringBuilder builder = new StringBuilder(buffer.length + 64);
+        builder.append("... (").append(getTruncated()).append(" characters truncated)\n");
+        builder.append(buffer, position, buffer.length - position);
+        builder.append(buffer, 0, position);
+        return builder.toString();
+    }
+
+}
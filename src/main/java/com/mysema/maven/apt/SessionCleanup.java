@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.apache.maven.execution.ExecutionEvent;
+import org.apache.maven.execution.ExecutionListener;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+
+/**
+ * SessionCleanup closes the pooled file managers and the shared processor class loaders at the end of
+ * a Maven session
+ *
+ * <p>The pools are static and outlive the session in long-lived JVMs like the ones of IDEs and build
+ * daemons, where they would keep the classpath and processor archives open and locked on Windows.
+ * Plugins can't register lifecycle participants without being declared as extensions, so the execution
+ * listener of the request is wrapped instead, which Maven looks up for each event.</p>
+ */
+public final class SessionCleanup implements ExecutionListener {
+
+    // requests whose listener is wrapped
+    private static final Set<MavenExecutionRequest> registered = Collections.newSetFromMap(
+            new WeakHashMap<MavenExecutionRequest, Boolean>());
+
+    private final ExecutionListener delegate;
+
+    private SessionCleanup(ExecutionListener delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Close the pools at the end of the given session, registering is idempotent per session
+     */
+    public static synchronized void register(MavenSession session) {
+        MavenExecutionRequest request = session.getRequest();
+        if (request != null && registered.add(request)) {
+            request.setExecutionListener(new SessionCleanup(request.getExecutionListener()));
+        }
+    }
+
+    /**
+     * Close the pooled file managers and the shared processor class loaders
+     */
+    public static void close() throws IOException {
+        try {
+            FileManagerPool.clear();
+        } finally {
+            ProcessorLoader.clear();
+        }
+    }
+
+    @Override
+    public void sessionEnded(ExecutionEvent event) {
+        try {
+            if (delegate != null) {
+                delegate.sessionEnded(event);
+            }
+        } finally {
+            try {
+                close();
+            } catch (IOException e) {
+                // the pools are cleared anyway
+            }
+        }
+    }
+
+    @Override
+    public void projectDiscoveryStarted(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.projectDiscoveryStarted(event);
+        }
+    }
+
+    @Override
+    public void sessionStarted(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.sessionStarted(event);
+        }
+    }
+
+    @Override
+    public void projectSkipped(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.projectSkipped(event);
+        }
+    }
+
+    @Override
+    public void projectStarted(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.projectStarted(event);
+        }
+    }
+
+    @Override
+    public void projectSucceeded(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.projectSucceeded(event);
+        }
+    }
+
+    @Override
+    public void projectFailed(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.projectFailed(event);
+        }
+    }
+
+    @Override
+    public void mojoSkipped(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.mojoSkipped(event);
+        }
+    }
+
+    @Override
+    public void mojoStarted(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.mojoStarted(event);
+        }
+    }
+
+    @Override
+    public void mojoSucceeded(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.mojoSucceeded(event);
+        }
+    }
+
+    @Override
+    public void mojoFailed(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.mojoFailed(event);
+        }
+    }
+
+    @Override
+    public void forkStarted(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.forkStarted(event);
+        }
+    }
+
+    @Override
+    public void forkSucceeded(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.forkSucceeded(event);
+        }
+    }
+
+    @Override
+    public void forkFailed(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.forkFailed(event);
+        }
+    }
+
+    @Override
+    public void forkedProjectStarted(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.forkedProjectStarted(event);
+        }
+    }
+
+    @Override
+    public void forkedProjectSucceeded(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.forkedProjectSucceeded(event);
+        }
+    }
+
+    @Override
+    public void forkedProjectFailed(ExecutionEvent event) {
+        if (delegate != null) {
+            delegate.forkedProjectFailed(event);
+        }
+    }
+
+}
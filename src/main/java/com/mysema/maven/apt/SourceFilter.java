@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.Maps;
+
+/**
+ * SourceFilter matches relative paths against compiled include and exclude patterns
+ *
+ * <p>Patterns use the syntax of {@link org.codehaus.plexus.util.DirectoryScanner}. Include patterns are indexed
+ * in a trie by their leading literal segments, so that directories outside of all included packages are
+ * rejected after a few lookups and their subtrees don't need to be walked.</p>
+ */
+public final class SourceFilter {
+
+    private static final ConcurrentMap<String, SourceFilter> FILTERS = Maps.newConcurrentMap();
+
+    /**
+     * Node of the trie of literal include prefixes
+     */
+    private static final class Node {
+
+        private final Map<String, Node> children = new HashMap<String, Node>();
+
+        // include patterns whose literal prefix ends at this node
+        private final List<Segment[]> patterns = new ArrayList<Segment[]>();
+
+    }
+
+    /**
+     * Compiled path segment of a pattern
+     */
+    private static final class Segment {
+
+        private final String value;
+
+        private final Pattern pattern;
+
+        Segment(String value) {
+            this.value = value;
+            this.pattern = isLiteralSegment(value) ? null : Pattern.compile(toRegex(value));
+        }
+
+        boolean isDoubleStar() {
+            return value.equals("**");
+        }
+
+        boolean isLiteral() {
+            return pattern == null;
+        }
+
+        boolean matches(String segment) {
+            return pattern != null ? pattern.matcher(segment).matches() : value.equals(segment);
+        }
+
+    }
+
+    private final Node includes = new Node();
+
+    private final List<Segment[]> excludes = new ArrayList<Segment[]>();
+
+    private final String lastIncludeSegment;
+
+    private SourceFilter(String[] includePatterns, String[] excludePatterns) {
+        String last = null;
+        for (int i = 0; i < includePatterns.length; i++) {
+            Segment[] pattern = compile(includePatterns[i]);
+            Node node = includes;
+            int literal = 0;
+            while (literal < pattern.length && pattern[literal].isLiteral()) {
+                String value = pattern[literal++].value;
+                if (!node.children.containsKey(value)) {
+                    node.children.put(value, new Node());
+                }
+                node = node.children.get(value);
+            }
+            node.patterns.add(pattern);
+            String lastSegment = pattern.length > 0 ? pattern[pattern.length - 1].value : "";
+            last = i == 0 || lastSegment.equals(last) ? lastSegment : null;
+        }
+        for (String excludePattern : excludePatterns) {
+            excludes.add(compile(excludePattern));
+        }
+        this.lastIncludeSegment = last;
+    }
+
+    /**
+     * Get the filter for the given patterns, filters are compiled once per JVM
+     */
+    public static SourceFilter of(String[] includes, String[] excludes) {
+        String key = Arrays.toString(includes) + Arrays.toString(excludes);
+        SourceFilter filter = FILTERS.get(key);
+        if (filter == null) {
+            filter = new SourceFilter(includes, excludes);
+            FILTERS.putIfAbsent(key, filter);
+        }
+        return filter;
+    }
+
+    /**
+     * @param path file path relative to the root directory with / as separator
+     * @return true, if the path matches an include and no exclude pattern
+     */
+    public boolean isIncluded(String path) {
+        String[] segments = split(path);
+        Node node = includes;
+        for (int i = 0; node != null; i++) {
+            for (Segment[] pattern : node.patterns) {
+                if (match(pattern, i, segments, i)) {
+                    return !isExcluded(segments);
+                }
+            }
+            node = i < segments.length ? node.children.get(segments[i]) : null;
+        }
+        return false;
+    }
+
+    /**
+     * @param path directory path relative to the root directory with / as separator, empty for the root
+     * @return false, if no file in the directory or its subdirectories can be included
+     */
+    public boolean couldHoldIncluded(String path) {
+        String[] segments = split(path);
+        for (Segment[] exclude : excludes) {
+            if (excludesSubtree(exclude, segments)) {
+                return false;
+            }
+        }
+        Node node = includes;
+        for (int i = 0; node != null; i++) {
+            for (Segment[] pattern : node.patterns) {
+                if (matchStart(pattern, i, segments, i)) {
+                    return true;
+                }
+            }
+            if (i == segments.length) {
+                // the directory lies on the literal prefix of longer patterns
+                return !node.children.isEmpty();
+            }
+            node = node.children.get(segments[i]);
+        }
+        return false;
+    }
+
+    private boolean isExcluded(String[] segments) {
+        for (Segment[] exclude : excludes) {
+            if (match(exclude, 0, segments, 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the given exclude pattern matches the given directory followed by ** alone or by ** and
+     * the common last segment of all include patterns
+     */
+    private boolean excludesSubtree(Segment[] exclude, String[] directory) {
+        if (exclude.length <= directory.length) {
+            return false;
+        }
+        for (int i = 0; i < directory.length; i++) {
+            if (exclude[i].isDoubleStar() || !exclude[i].matches(directory[i])) {
+                return false;
+            }
+        }
+        int remaining = exclude.length - directory.length;
+        if (!exclude[directory.length].isDoubleStar()) {
+            return false;
+        }
+        return remaining == 1 || (remaining == 2 && exclude[exclude.length - 1].value.equals(lastIncludeSegment));
+    }
+
+    private static boolean match(Segment[] pattern, int p, String[] path, int s) {
+        while (p < pattern.length) {
+            if (pattern[p].isDoubleStar()) {
+                if (p == pattern.length - 1) {
+                    return true;
+                }
+                for (int k = s; k <= path.length; k++) {
+                    if (match(pattern, p + 1, path, k)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (s >= path.length || !pattern[p].matches(path[s])) {
+                return false;
+            }
+            p++;
+            s++;
+        }
+        return s == path.length;
+    }
+
+    /**
+     * Check whether a path below the given directory can match the given pattern
+     */
+    private static boolean matchStart(Segment[] pattern, int p, String[] directory, int s) {
+        while (s < directory.length) {
+            if (p >= pattern.length) {
+                return false;
+            }
+            if (pattern[p].isDoubleStar()) {
+                return true;
+            }
+            if (!pattern[p].matches(directory[s])) {
+                return false;
+            }
+            p++;
+            s++;
+        }
+        return p < pattern.length;
+    }
+
+    private static Segment[] compile(String pattern) {
+        String normalized = pattern.replace('\\', '/');
+        if (normalized.endsWith("/")) {
+            normalized += "**";
+        }
+        String[] values = split(normalized);
+        Segment[] segments = new Segment[values.length];
+        for (int i = 0; i < values.length; i++) {
+            segments[i] = new Segment(values[i]);
+        }
+        return segments;
+    }
+
+    private static String[] split(String path) {
+        List<String> segments = new ArrayList<String>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(segment);
+            }
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    private static boolean isLiteralSegment(String segment) {
+        return segment.indexOf('*') < 0 && segment.indexOf('?') < 0;
+    }
+
+    private static String toRegex(String segment) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return regex.toString();
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.codehaus.plexus.util.Scanner;
+import org.sonatype.plexus.build.incremental.BuildContext;
+
+/**
+ * SourceScanner collects the source files to process and the deleted source files of source directories
+ *
+ * <p>In incremental builds the scanners of the {@link BuildContext} are used, so that the deltas of the IDE
+ * apply. Otherwise each directory is walked once, with the directories walked in parallel and subtrees
+ * that can't hold included files skipped, see {@link SourceFilter}.</p>
+ */
+public class SourceScanner {
+
+    private final BuildContext buildContext;
+
+    private final String[] includes, excludes;
+
+    private final SourceFilter filter;
+
+    /**
+     * @param buildContext build context
+     * @param includes include patterns relative to the source directories
+     * @param excludes exclude patterns relative to the source directories
+     */
+    public SourceScanner(BuildContext buildContext, String[] includes, String[] excludes) {
+        this.buildContext = buildContext;
+        this.includes = includes.clone();
+        this.excludes = excludes.clone();
+        this.filter = SourceFilter.of(includes, excludes);
+    }
+
+    /**
+     * Result of a scan
+     */
+    public static final class Result {
+
+        private final Set<File> files = new HashSet<File>();
+
+        private final Set<File> deletedFiles = new HashSet<File>();
+
+        /**
+         * @return files to process, which are only the changed files in incremental builds without deletions
+         */
+        public Set<File> getFiles() {
+            return files;
+        }
+
+        /**
+         * @return files deleted since the last build, always empty in non-incremental builds
+         */
+        public Set<File> getDeletedFiles() {
+            return deletedFiles;
+        }
+
+        public boolean hasDeletedFiles() {
+            return !deletedFiles.isEmpty();
+        }
+
+    }
+
+    public Result scan(Collection<File> directories) throws IOException {
+        Result result = new Result();
+        if (buildContext.isIncremental()) {
+            for (File directory : directories) {
+                Scanner scanner = buildContext.newDeleteScanner(directory);
+                addIncludedFiles(scanner, result.deletedFiles);
+            }
+            // support for incremental build in m2e context
+            for (File directory : directories) {
+                Scanner scanner = buildContext.newScanner(directory, result.hasDeletedFiles());
+                addIncludedFiles(scanner, result.files);
+            }
+        } else if (directories.size() == 1) {
+            walk(directories.iterator().next(), result.files);
+        } else if (!directories.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.min(directories.size(), Runtime.getRuntime().availableProcessors()));
+            try {
+                List<Future<Set<File>>> futures = new ArrayList<Future<Set<File>>>(directories.size());
+                for (final File directory : directories) {
+                    futures.add(executor.submit(new Callable<Set<File>>() {
+                        @Override
+                        public Set<File> call() throws IOException {
+                            Set<File> files = new HashSet<File>();
+                            walk(directory, files);
+                            return files;
+                        }
+                    }));
+                }
+                for (Future<Set<File>> future : futures) {
+                    result.files.addAll(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                executor.shutdown();
+            }
+        }
+        return result;
+    }
+
+    private void addIncludedFiles(Scanner scanner, Set<File> files) {
+        scanner.setIncludes(includes);
+        if (excludes.length > 0) {
+            scanner.setExcludes(excludes);
+        }
+        scanner.scan();
+        String[] includedFiles = scanner.getIncludedFiles();
+        if (includedFiles != null) {
+            for (String includedFile : includedFiles) {
+                files.add(new File(scanner.getBasedir(), includedFile));
+            }
+        }
+    }
+
+    private void walk(File directory, final Set<File> files) throws IOException {
+        final Path root = directory.toPath();
+        Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (filter.couldHoldIncluded(relativize(root, dir))) {
+                    return FileVisitResult.CONTINUE;
+                }
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && filter.isIncluded(relativize(root, file))) {
+                    files.add(file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // unreadable files and symbolic link cycles are skipped like in the directory scanner
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String relativize(Path root, Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+}
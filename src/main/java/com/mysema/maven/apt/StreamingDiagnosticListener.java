@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+
+import org.sonatype.plexus.build.incremental.BuildContext;
+
+import com.google.common.base.Function;
+
+/**
+ * StreamingDiagnosticListener forwards diagnostics to the build context as they are reported:
+ * <ul>
+ *   <li>cli build creates log output</li>
+ *   <li>m2e build creates markers for eclipse</li>
+ * </ul>
+ *
+ * <p>Source files of the diagnostics are mapped with the given function, e.g. from temporary to output
+ * directories. Duplicates of forwarded diagnostics are dropped, and only the given amount of diagnostics
+ * with the same message is forwarded. The forwarded diagnostics and messages are tracked up to a limit,
+ * beyond which the least recently seen ones are dropped, so that long builds with many distinct
+ * diagnostics don't retain them all. Diagnostics may be reported by several tasks concurrently.</p>
+ */
+public class StreamingDiagnosticListener implements DiagnosticListener<JavaFileObject> {
+
+    private final BuildContext buildContext;
+
+    private final Function<File, File> sourceMapping;
+
+    private final int maxRepeats;
+
+    private static final int DEFAULT_TRACKING_LIMIT = 10000;
+
+    private final Set<String> forwarded;
+
+    private final Map<String, Integer> repeats;
+
+    private int reported, suppressed;
+
+    /**
+     * @param buildContext build context to forward to
+     * @param sourceMapping mapping of the source files of diagnostics
+     * @param maxRepeats maximum amount of forwarded diagnostics with the same kind and message
+     */
+    public StreamingDiagnosticListener(BuildContext buildContext, Function<File, File> sourceMapping, int maxRepeats) {
+        this(buildContext, sourceMapping, maxRepeats, DEFAULT_TRACKING_LIMIT);
+    }
+
+    /**
+     * @param buildContext build context to forward to
+     * @param sourceMapping mapping of the source files of diagnostics
+     * @param maxRepeats maximum amount of forwarded diagnostics with the same kind and message
+     * @param trackingLimit maximum amount of tracked diagnostics and messages
+     */
+    public StreamingDiagnosticListener(BuildContext buildContext, Function<File, File> sourceMapping, int maxRepeats,
+            int trackingLimit) {
+        this.buildContext = buildContext;
+        this.sourceMapping = sourceMapping;
+        this.maxRepeats = maxRepeats;
+        this.forwarded = Collections.newSetFromMap(StreamingDiagnosticListener.<Boolean> createLruMap(trackingLimit));
+        this.repeats = createLruMap(trackingLimit);
+    }
+
+    private static <V> Map<String, V> createLruMap(final int limit) {
+        return new LinkedHashMap<String, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > limit;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+        reported++;
+        JavaFileObject javaFileObject = diagnostic.getSource();
+        int severity;
+        switch (diagnostic.getKind()) {
+        case ERROR:
+            severity = BuildContext.SEVERITY_ERROR;
+            break;
+        case WARNING:
+        case MANDATORY_WARNING:
+            severity = BuildContext.SEVERITY_WARNING;
+            break;
+        default:
+            return;
+        }
+        if (javaFileObject == null) { // message was created without element parameter
+            return;
+        }
+        File file = sourceMapping.apply(new File(javaFileObject.toUri().getPath()));
+        int lineNumber = (int) diagnostic.getLineNumber();
+        int columnNumber = (int) diagnostic.getColumnNumber();
+        String message = diagnostic.getMessage(Locale.getDefault());
+
+        String repeatKey = severity + ":" + message;
+        Integer count = repeats.get(repeatKey);
+        count = count != null ? count + 1 : 1;
+        if (count > maxRepeats || !forwarded.add(repeatKey + ":" + file + ":" + lineNumber + ":" + columnNumber)) {
+            suppressed++;
+            return;
+        }
+        repeats.put(repeatKey, count);
+        buildContext.addMessage(file, lineNumber, columnNumber, message, severity, null);
+    }
+
+    /**
+     * @return amount of reported diagnostics
+     */
+    public synchronized int getReported() {
+        return reported;
+    }
+
+    /**
+     * @return amount of duplicate or repeated diagnostics which were not forwarded
+     */
+    public synchronized int getSuppressed() {
+        return suppressed;
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.primitives.UnsignedLongs;
+
+/**
+ * SyncManifest records the size, modification time and content hash of the files synced into a target directory
+ *
+ * <p>Files are identified by their path relative to the target directory. An entry is only trusted while
+ * size and modification time of the target file are unchanged, so that the target file doesn't need to be
+ * read for comparison.</p>
+ */
+public class SyncManifest {
+
+    private static final Joiner JOINER = Joiner.on('\t');
+
+    private static final Splitter SPLITTER = Splitter.on('\t');
+
+    /**
+     * Manifest entry of a single file
+     */
+    public static final class Entry {
+
+        private final long length, lastModified, hash;
+
+        Entry(long length, long lastModified, long hash) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        /**
+         * @return true, if size and modification time of the given file match the entry
+         */
+        public boolean isCurrent(File file) {
+            return file.length() == length && file.lastModified() == lastModified && file.isFile();
+        }
+
+    }
+
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+
+    /**
+     * Load the manifest from the given file
+     *
+     * @return manifest or null, if the file doesn't exist or is malformed
+     */
+    public static SyncManifest load(File file) throws IOException {
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        BufferedReader reader = Files.newReader(file, Charsets.UTF_8);
+        try {
+            SyncManifest manifest = new SyncManifest();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                List<String> fields = Lists.newArrayList(SPLITTER.split(line));
+                if (fields.size() != 4) {
+                    return null;
+                }
+                manifest.entries.put(fields.get(0), new Entry(Long.parseLong(fields.get(1)), Long.parseLong(fields.get(2)),
+                        UnsignedLongs.parseUnsignedLong(fields.get(3), 16)));
+            }
+            return manifest;
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void store(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        Writer writer = Files.newWriter(file, Charsets.UTF_8);
+        try {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(JOINER.join(entry.getKey(), value.length, value.lastModified,
+                        UnsignedLongs.toString(value.hash, 16)) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    public Set<String> getPaths() {
+        return entries.keySet();
+    }
+
+    /**
+     * Record the given target file with the given content hash, may be called concurrently
+     */
+    public void put(String path, File file, long hash) {
+        Entry entry = new Entry(file.length(), file.lastModified(), hash);
+        synchronized (entries) {
+            entries.put(path, entry);
+        }
+    }
+
+    public void putAll(SyncManifest manifest) {
+        entries.putAll(manifest.entries);
+    }
+
+    /**
+     * Get the 64 bit content hash of the given file
+     */
+    public static long hash(File file) throws IOException {
+        return Files.hash(file, Hashing.sipHash24()).asLong();
+    }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.JavaFileObject;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * TaskProfiler records the parse time of each compilation unit, the durations of the processing rounds
+ * and the time spans of the compiler phases through the TaskListener of javac
+ *
+ * <p>javac enters and processes all compilation units of a round together, so only parsing can be
+ * attributed to single files. Events of several tasks may be recorded concurrently, rounds of concurrent
+ * tasks are added up.</p>
+ */
+public class TaskProfiler {
+
+    private final Map<String, Long> sources = new HashMap<String, Long>();
+
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+    private final List<Long> rounds = new ArrayList<Long>();
+
+    /**
+     * Listener state of a single task, events of a task are delivered by the thread running it
+     */
+    private final class Listener implements InvocationHandler {
+
+        private final Map<String, Integer> open = new HashMap<String, Integer>();
+
+        private final Map<String, Long> starts = new HashMap<String, Long>();
+
+        private long parseStart;
+
+        private int round;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                if (name.equals("equals")) {
+                    return proxy == args[0];
+                } else if (name.equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+                return "TaskProfiler listener";
+            }
+            Object event = args[0];
+            String kind = String.valueOf(event.getClass().getMethod("getKind").invoke(event));
+            long now = System.nanoTime();
+            if (name.equals("started")) {
+                if (kind.equals("PARSE")) {
+                    parseStart = now;
+                }
+                Integer count = open.get(kind);
+                open.put(kind, count != null ? count + 1 : 1);
+                if (count == null || count == 0) {
+                    starts.put(kind, now);
+                }
+            } else if (name.equals("finished")) {
+                if (kind.equals("PARSE")) {
+                    JavaFileObject source = (JavaFileObject) event.getClass().getMethod("getSourceFile").invoke(event);
+                    if (source != null) {
+                        addSource(source.getName(), now - parseStart);
+                    }
+                }
+                Integer count = open.get(kind);
+                if (count != null && count > 0) {
+                    open.put(kind, count - 1);
+                    if (count == 1) {
+                        long elapsed = now - starts.get(kind);
+                        addPhase(kind, elapsed);
+                        if (kind.equals("ANNOTATION_PROCESSING_ROUND")) {
+                            addRound(round++, elapsed);
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+    }
+
+    /**
+     * Register a listener for the given task, which needs to be a JavacTask
+     *
+     * @return false, if the task doesn't support listeners
+     */
+    public boolean attach(CompilationTask task) {
+        return addTaskListener(task, new Listener());
+    }
+
+    /**
+     * Register a TaskListener implemented by the given handler for the given task, the listener API is
+     * accessed reflectively as it isn't part of the JDK on all platforms
+     *
+     * @return false, if the task doesn't support listeners
+     */
+    static boolean addTaskListener(CompilationTask task, InvocationHandler handler) {
+        try {
+            ClassLoader classLoader = task.getClass().getClassLoader();
+            if (classLoader == null) {
+                classLoader = ClassLoader.getSystemClassLoader();
+            }
+            Class<?> taskClass = Class.forName("com.sun.source.util.JavacTask", true, classLoader);
+            Class<?> listenerClass = Class.forName("com.sun.source.util.TaskListener", true, classLoader);
+            if (!taskClass.isInstance(task)) {
+                return false;
+            }
+            Object listener = Proxy.newProxyInstance(classLoader, new Class<?>[] { listenerClass }, handler);
+            Method method;
+            try {
+                method = taskClass.getMethod("addTaskListener", listenerClass);
+            } catch (NoSuchMethodException e) {
+                // JDK 7
+                method = taskClass.getMethod("setTaskListener", listenerClass);
+            }
+            method.invoke(task, listener);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private synchronized void addSource(String source, long nanos) {
+        Long previous = sources.get(source);
+        sources.put(source, (previous != null ? previous : 0L) + nanos);
+    }
+
+    private synchronized void addPhase(String phase, long nanos) {
+        Long previous = phases.get(phase);
+        phases.put(phase, (previous != null ? previous : 0L) + nanos);
+    }
+
+    private synchronized void addRound(int round, long nanos) {
+        while (rounds.size() <= round) {
+            rounds.add(0L);
+        }
+        rounds.set(round, rounds.get(round) + nanos);
+    }
+
+    /**
+     * Get the given amount of sources with the longest parse times, longest first
+     */
+    public synchronized List<Map.Entry<String, Long>> getSlowestSources(int limit) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(sources.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        return entries.subList(0, Math.min(limit, entries.size()));
+    }
+
+    /**
+     * Write the phases, rounds and the given amount of slowest sources as text report
+     */
+    public void write(File file, int limit) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(toString(limit), file, Charsets.UTF_8);
+    }
+
+    public synchronized String toString(int limit) {
+        StringBuilder builder = new StringBuilder("Phases\n");
+        for (Map.Entry<String, Long> entry : phases.entrySet()) {
+            builder.append(String.format(Locale.ROOT, "%12s ms  %s%n", millis(entry.getValue()),
+                    entry.getKey().toLowerCase(Locale.ROOT).replace('_', ' ')));
+        }
+        builder.append("\nRounds\n");
+        for (int i = 0; i < rounds.size(); i++) {
+            builder.append(String.format(Locale.ROOT, "%12s ms  round %d%n", millis(rounds.get(i)), i + 1));
+        }
+        builder.append("\nSlowest sources to parse of ").append(sources.size()).append('\n');
+        for (Map.Entry<String, Long> entry : getSlowestSources(limit)) {
+            builder.append(String.format(Locale.ROOT, "%12s ms  %s%n", millis(entry.getValue()), entry.getKey()));
+        }
+        return builder.toString();
+    }
+
+    static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.util.Set;
+
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * TimingProcessor records the time spent in the wrapped processor per round
+ *
+ * <p>The initialization of the processor is accounted to its first round.</p>
+ */
+public class TimingProcessor extends ForwardingProcessor {
+
+    private final ExecutionMetrics metrics;
+
+    private final String name;
+
+    private int round;
+
+    private long initTime;
+
+    public TimingProcessor(Processor delegate, ExecutionMetrics metrics) {
+        super(delegate);
+        this.metrics = metrics;
+        Processor processor = delegate;
+        while (processor instanceof ForwardingProcessor) {
+            processor = ((ForwardingProcessor) processor).getDelegate();
+        }
+        this.name = processor.getClass().getName();
+    }
+
+    @Override
+    public void init(ProcessingEnvironment processingEnv) {
+        long start = System.nanoTime();
+        try {
+            super.init(processingEnv);
+        } finally {
+            initTime = System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        long start = System.nanoTime();
+        try {
+            return super.process(annotations, roundEnv);
+        } finally {
+            metrics.addProcessorTime(name, round++, System.nanoTime() - start + initTime);
+            initTime = 0;
+        }
+    }
+
+}
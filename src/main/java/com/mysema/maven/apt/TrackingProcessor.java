@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2014 Timo Westkämper
+ * All rights reserved.
+ *
+ */
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.FileObject;
+import javax.tools.JavaFileManager.Location;
+import javax.tools.JavaFileObject;
+
+/**
+ * TrackingProcessor records the originating source files of the files created by the wrapped processor
+ * and the source files of the types these depend on
+ *
+ * <p>Origins are taken from the originating elements given to the {@link Filer}. Files created without
+ * originating elements in source form are recorded with an empty set of origins. The dependencies of a
+ * file are the sources of the supertypes and member types of its originating types, transitively, since
+ * processors like Querydsl copy inherited members into the generated files, and the sources of the types
+ * of their fields and methods, which decide e.g. whether a property is generated as an entity path.
+ * Other dependencies, e.g. on types referenced only through annotation values, are not tracked.</p>
+ *
+ * <p>The wrapped processor gets a wrapper of the processing environment, so only processors using the
+ * standard API may be tracked. Processors using compiler internals, e.g. through
+ * {@code Trees.instance(processingEnv)}, fail with the wrapper.</p>
+ */
+public class TrackingProcessor extends ForwardingProcessor {
+
+    private final Map<File, Set<File>> generatedFiles;
+
+    private final Map<File, Set<File>> dependencies;
+
+    /**
+     * @param delegate processor to wrap
+     * @param generatedFiles map to be populated with created files and their originating source files
+     * @param dependencies map to be populated with created files and the source files of the types
+     *        their originating types depend on
+     */
+    public TrackingProcessor(Processor delegate, Map<File, Set<File>> generatedFiles, Map<File, Set<File>> dependencies) {
+        super(delegate);
+        this.generatedFiles = generatedFiles;
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * Check whether the given processor class is contained in the given class names and packages, which
+     * are given with a trailing dot
+     */
+    public static boolean isTracked(String className, Collection<String> trackedProcessors) {
+        for (String tracked : trackedProcessors) {
+            if (tracked.endsWith(".") ? className.startsWith(tracked) : className.equals(tracked)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void init(final ProcessingEnvironment processingEnv) {
+        final Filer filer = new TrackingFiler(processingEnv);
+        super.init(new ProcessingEnvironment() {
+            @Override
+            public Map<String, String> getOptions() {
+                return processingEnv.getOptions();
+            }
+
+            @Override
+            public Messager getMessager() {
+                return processingEnv.getMessager();
+            }
+
+            @Override
+            public Filer getFiler() {
+                return filer;
+            }
+
+            @Override
+            public Elements getElementUtils() {
+                return processingEnv.getElementUtils();
+            }
+
+            @Override
+            public Types getTypeUtils() {
+                return processingEnv.getTypeUtils();
+            }
+
+            @Override
+            public SourceVersion getSourceVersion() {
+                return processingEnv.getSourceVersion();
+            }
+
+            @Override
+            public Locale getLocale() {
+                return processingEnv.getLocale();
+            }
+        });
+    }
+
+    private class TrackingFiler implements Filer {
+
+        private final ProcessingEnvironment processingEnv;
+
+        private final Filer filer;
+
+        private Object trees;
+
+        private Method getPath, getCompilationUnit, getSourceFile;
+
+        TrackingFiler(ProcessingEnvironment processingEnv) {
+            this.processingEnv = processingEnv;
+            this.filer = processingEnv.getFiler();
+        }
+
+        @Override
+        public JavaFileObject createSourceFile(CharSequence name, Element... originatingElements) throws IOException {
+            return record(filer.createSourceFile(name, originatingElements), originatingElements);
+        }
+
+        @Override
+        public JavaFileObject createClassFile(CharSequence name, Element... originatingElements) throws IOException {
+            return record(filer.createClassFile(name, originatingElements), originatingElements);
+        }
+
+        @Override
+        public FileObject createResource(Location location, CharSequence pkg, CharSequence relativeName,
+                Element... originatingElements) throws IOException {
+            return record(filer.createResource(location, pkg, relativeName, originatingElements), originatingElements);
+        }
+
+        @Override
+        public FileObject getResource(Location location, CharSequence pkg, CharSequence relativeName) throws IOException {
+            return filer.getResource(location, pkg, relativeName);
+        }
+
+        private <T extends FileObject> T record(T fileObject, Element... originatingElements) {
+            URI uri = fileObject.toUri();
+            if ("file".equals(uri.getScheme())) {
+                Set<File> origins = new HashSet<File>();
+                Set<File> sources = new HashSet<File>();
+                if (originatingElements != null) {
+                    Set<Element> visited = new HashSet<Element>();
+                    for (Element element : originatingElements) {
+                        File origin = getSourceFile(element);
+                        if (origin != null) {
+                            origins.add(origin);
+                        }
+                        addDependencies(element, sources, visited);
+                    }
+                }
+                sources.removeAll(origins);
+                generatedFiles.put(new File(uri), origins);
+                dependencies.put(new File(uri), sources);
+            }
+            return fileObject;
+        }
+
+        /**
+         * Add the sources of the supertypes and member types of the given type and of the types of its fields
+         * and methods, types in class form end the walk, since their supertypes are in class form as well
+         */
+        private void addDependencies(Element element, Set<File> sources, Set<Element> visited) {
+            if (!(element instanceof TypeElement) || !visited.add(element)) {
+                return;
+            }
+            TypeElement type = (TypeElement) element;
+            Types types = processingEnv.getTypeUtils();
+            for (TypeMirror supertype : types.directSupertypes(type.asType())) {
+                Element superElement = types.asElement(supertype);
+                File source = superElement != null ? getSourceFile(superElement) : null;
+                if (source != null) {
+                    sources.add(source);
+                    addDependencies(superElement, sources, visited);
+                }
+            }
+            for (Element member : type.getEnclosedElements()) {
+                if (member.getKind().isClass() || member.getKind().isInterface()) {
+                    addDependencies(member, sources, visited);
+                } else if (member.getKind() == ElementKind.FIELD) {
+                    addReferencedTypes(member.asType(), sources);
+                } else if (member.getKind() == ElementKind.METHOD) {
+                    addReferencedTypes(((ExecutableElement) member).getReturnType(), sources);
+                }
+            }
+        }
+
+        /**
+         * Add the sources of the given type and its type arguments
+         */
+        private void addReferencedTypes(TypeMirror type, Set<File> sources) {
+            if (type.getKind() == TypeKind.ARRAY) {
+                addReferencedTypes(((ArrayType) type).getComponentType(), sources);
+            } else if (type.getKind() == TypeKind.DECLARED) {
+                File source = getSourceFile(((DeclaredType) type).asElement());
+                if (source != null) {
+                    sources.add(source);
+                }
+                for (TypeMirror argument : ((DeclaredType) type).getTypeArguments()) {
+                    addReferencedTypes(argument, sources);
+                }
+            }
+        }
+
+        /**
+         * Resolve the source file of the given element through the Compiler Tree API. The API is accessed
+         * reflectively, since it is not visible to the plugin class loader on all JDKs.
+         */
+        private File getSourceFile(Element element) {
+            try {
+                if (trees == null) {
+                    ClassLoader classLoader = processingEnv.getClass().getClassLoader();
+                    Class<?> treesClass = Class.forName("com.sun.source.util.Trees", true, classLoader);
+                    Class<?> treePathClass = Class.forName("com.sun.source.util.TreePath", true, classLoader);
+                    Class<?> unitClass = Class.forName("com.sun.source.tree.CompilationUnitTree", true, classLoader);
+                    getPath = treesClass.getMethod("getPath", Element.class);
+                    getCompilationUnit = treePathClass.getMethod("getCompilationUnit");
+                    getSourceFile = unitClass.getMethod("getSourceFile");
+                    trees = treesClass.getMethod("instance", ProcessingEnvironment.class).invoke(null, processingEnv);
+                }
+                Object path = getPath.invoke(trees, element);
+                if (path != null) {
+                    Object unit = getCompilationUnit.invoke(path);
+                    JavaFileObject source = (JavaFileObject) getSourceFile.invoke(unit);
+                    if (source != null && "file".equals(source.toUri().getScheme())) {
+                        return new File(source.toUri());
+                    }
+                }
+            } catch (Exception e) {
+                // origin stays unknown
+            }
+            return null;
+        }
+
+    }
+
+}
@@ -2,35 +2,46 @@ package com.mysema.maven.apt;
 
 import static org.junit.Assert.*;
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
 import java.net.URLClassLoader;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
+import javax.tools.ToolProvider;
+
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.DefaultArtifact;
 import org.apache.maven.artifact.DependencyResolutionRequiredException;
 import org.apache.maven.artifact.versioning.VersionRange;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
 import org.apache.maven.project.MavenProject;
 import org.easymock.EasyMock;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.sonatype.plexus.build.incremental.BuildContext;
 import org.sonatype.plexus.build.incremental.DefaultBuildContext;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 import com.mysema.query.apt.QuerydslAnnotationProcessor;
 import com.mysema.util.FileUtils;
 
 public class AnnotationProcessorMojoTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private File targetDir;
     private File outputDir;
 
@@ -72,6 +83,17 @@ public class AnnotationProcessorMojoTest {
     public void tearDown() throws IOException {
         FileUtils.delete(outputDir);
         System.setProperty("maven.apt.skip", "");
+        SessionCleanup.close();
+    }
+
+    /**
+     * Expect the output directory to be added by each execution of the test
+     */
+    private void expectRepeatedExecutions() {
+        EasyMock.reset(project);
+        project.addCompileSourceRoot(outputDir.getAbsolutePath());
+        EasyMock.expectLastCall().anyTimes();
+        EasyMock.replay(project);
     }
 
     @Test
@@ -105,6 +127,14 @@ public class AnnotationProcessorMojoTest {
         assertTrue(new File(outputDir, "com/example/QEntity.java").exists());
     }
 
+    @Test
+    public void Excludes() throws MojoExecutionException {
+        mojo.setExcludes(Sets.newHashSet("com.example"));
+        mojo.execute();
+        EasyMock.verify(project);
+        assertFalse(new File(outputDir, "com/example/QEntity.java").exists());
+    }
+
     @Test
     public void Options() throws MojoExecutionException {
         mojo.setOptions(Collections.singletonMap("querydsl.packageSuffix", ".query"));
@@ -113,6 +143,28 @@ public class AnnotationProcessorMojoTest {
         assertTrue(new File(outputDir, "com/example/query/QEntity.java").exists());
     }
 
+    @Test
+    public void ProcessorPath_In_CompilerOptions() throws Exception {
+        File processorPath = folder.newFolder("processors");
+        File source = new File(processorPath, "CustomProcessor.java");
+        Files.write("import java.util.Set; import javax.annotation.processing.*; import javax.lang.model.SourceVersion; "
+                + "import javax.lang.model.element.TypeElement; import java.io.*; "
+                + "@SupportedAnnotationTypes(\"*\") public class CustomProcessor extends AbstractProcessor { "
+                + "private boolean done; "
+                + "public SourceVersion getSupportedSourceVersion() { return SourceVersion.latestSupported(); } "
+                + "public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) { "
+                + "if (!done) { done = true; try { Writer writer = processingEnv.getFiler().createSourceFile(\"custom.Generated\").openWriter(); "
+                + "writer.write(\"package custom; public class Generated {}\"); writer.close(); "
+                + "} catch (IOException e) { throw new RuntimeException(e); } } return false; } }", source, Charsets.UTF_8);
+        assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, source.getAbsolutePath()));
+
+        // the processor is instantiated by javac from the given processorpath
+        mojo.setProcessor("CustomProcessor");
+        mojo.setCompilerOptions(Collections.singletonMap("processorpath", processorPath.getAbsolutePath()));
+        mojo.execute();
+        assertTrue(new File(outputDir, "custom/Generated.java").exists());
+    }
+
     @Test
     @Ignore
     public void NullOptions() throws MojoExecutionException {
@@ -141,6 +193,404 @@ public class AnnotationProcessorMojoTest {
         assertTrue(new File(outputDir, "com/example/QEntity.java").exists());
     }
 
+    @Test
+    public void SkipUnchanged() throws MojoExecutionException {
+        expectRepeatedExecutions();
+        File generated = new File(outputDir, "com/example/QEntity.java");
+        mojo.setSkipUnchanged(true);
+        mojo.execute();
+        assertTrue(generated.delete());
+
+        // unchanged inputs
+        mojo.execute();
+        assertFalse(generated.exists());
+
+        // changed options
+        mojo.setOptions(Collections.singletonMap("querydsl.entityAccessors", "true"));
+        mojo.execute();
+        assertTrue(generated.exists());
+    }
+
+    @Test
+    public void SkipUnchanged_SourcePath() throws Exception {
+        expectRepeatedExecutions();
+        File sources = folder.newFolder("sources");
+        File entity = new File(sources, "com/example/Entity.java");
+        File base = new File(sources, "com/base/Base.java");
+        entity.getParentFile().mkdirs();
+        base.getParentFile().mkdirs();
+        Files.write("package com.example; @com.mysema.query.annotations.QueryEntity public class Entity extends com.base.Base {}", entity, Charsets.UTF_8);
+        Files.write("package com.base; public class Base { String name; }", base, Charsets.UTF_8);
+        mojo.compileSourceRoots = Lists.newArrayList(sources.getAbsolutePath());
+        mojo.setIncludes(Sets.newHashSet("com/example/**"));
+        mojo.setSkipUnchanged(true);
+        mojo.execute();
+        File generated = new File(outputDir, "com/example/QEntity.java");
+        assertTrue(generated.delete());
+
+        // sources outside of the includes are read through the sourcepath
+        Files.write("package com.base; public class Base { String name, title; }", base, Charsets.UTF_8);
+        mojo.execute();
+        assertTrue(generated.exists());
+    }
+
+    @Test
+    public void SkipUnchanged_Includes() throws Exception {
+        expectRepeatedExecutions();
+        File sources = folder.newFolder("sources");
+        File entity = new File(sources, "com/example/Entity.java");
+        File entity2 = new File(sources, "com/example2/Entity2.java");
+        entity.getParentFile().mkdirs();
+        entity2.getParentFile().mkdirs();
+        Files.write("package com.example; @com.mysema.query.annotations.QueryEntity public class Entity {}", entity, Charsets.UTF_8);
+        Files.write("package com.example2; @com.mysema.query.annotations.QueryEntity public class Entity2 {}", entity2, Charsets.UTF_8);
+        mojo.compileSourceRoots = Lists.newArrayList(sources.getAbsolutePath());
+        mojo.setIncludes(Sets.newHashSet("com/example/**"));
+        mojo.setSkipUnchanged(true);
+        mojo.execute();
+        assertFalse(new File(outputDir, "com/example2/QEntity2.java").exists());
+
+        // changed includes
+        mojo.setIncludes(Sets.newHashSet("com/example2/**"));
+        mojo.execute();
+        assertTrue(new File(outputDir, "com/example2/QEntity2.java").exists());
+    }
+
+    @Test
+    public void IncrementalProcessing() throws Exception {
+        expectRepeatedExecutions();
+        File sources = folder.newFolder("sources");
+        File entity = new File(sources, "com/example/Entity.java");
+        File entity3 = new File(sources, "com/example/Entity3.java");
+        entity.getParentFile().mkdirs();
+        Files.write("package com.example; @com.mysema.query.annotations.QueryEntity public class Entity {}", entity, Charsets.UTF_8);
+        mojo.compileSourceRoots = Lists.newArrayList(sources.getAbsolutePath());
+        mojo.setIncrementalProcessing(true);
+        mojo.execute();
+
+        File generated = new File(outputDir, "com/example/QEntity.java");
+        File generated3 = new File(outputDir, "com/example/QEntity3.java");
+        assertTrue(generated.delete());
+
+        // only the new source is processed
+        Files.write("package com.example; @com.mysema.query.annotations.QueryEntity public class Entity3 {}", entity3, Charsets.UTF_8);
+        mojo.execute();
+        assertFalse(generated.exists());
+        assertTrue(generated3.exists());
+
+        // outputs of deleted sources are removed
+        assertTrue(entity3.delete());
+        mojo.execute();
+        assertFalse(generated3.exists());
+    }
+
+    @Test
+    public void IncrementalProcessing_Supertypes() throws Exception {
+        expectRepeatedExecutions();
+        File sources = folder.newFolder("sources");
+        File entity = new File(sources, "com/example/Entity.java");
+        File base = new File(sources, "com/example/Base.java");
+        entity.getParentFile().mkdirs();
+        Files.write("package com.example; @com.mysema.query.annotations.QueryEntity public class Entity extends Base {}", entity, Charsets.UTF_8);
+        Files.write("package com.example; @com.mysema.query.annotations.QuerySupertype public class Base { String name; }", base, Charsets.UTF_8);
+        mojo.compileSourceRoots = Lists.newArrayList(sources.getAbsolutePath());
+        mojo.setIncrementalProcessing(true);
+        mojo.execute();
+
+        // the generated files of subtypes are regenerated with the supertype
+        Files.write("package com.example; @com.mysema.query.annotations.QuerySupertype public class Base { String name, title; }", base, Charsets.UTF_8);
+        mojo.execute();
+        String generated = Files.toString(new File(outputDir, "com/example/QEntity.java"), Charsets.UTF_8);
+        assertTrue(generated, generated.contains("title"));
+    }
+
+    @Test
+    public void IncrementalProcessing_Includes() throws Exception {
+        expectRepeatedExecutions();
+        File sources = folder.newFolder("sources");
+        File entity = new File(sources, "com/example/Entity.java");
+        File base = new File(sources, "com/base/Base.java");
+        entity.getParentFile().mkdirs();
+        base.getParentFile().mkdirs();
+        Files.write("package com.example; @com.mysema.query.annotations.QueryEntity public class Entity extends com.base.Base {}", entity, Charsets.UTF_8);
+        Files.write("package com.base; public class Base { String name; }", base, Charsets.UTF_8);
+        mojo.compileSourceRoots = Lists.newArrayList(sources.getAbsolutePath());
+        mojo.setIncludes(Sets.newHashSet("com/example/**"));
+        mojo.setIncrementalProcessing(true);
+        mojo.execute();
+
+        // supertypes outside of the includes are stamped as dependencies
+        Files.write("package com.base; public class Base { String name, title; }", base, Charsets.UTF_8);
+        mojo.execute();
+        String generated = Files.toString(new File(outputDir, "com/example/QEntity.java"), Charsets.UTF_8);
+        assertTrue(generated, generated.contains("title"));
+    }
+
+    @Test
+    public void IncrementalProcessing_PropertyTypes() throws Exception {
+        expectRepeatedExecutions();
+        File sources = folder.newFolder("sources");
+        File entity = new File(sources, "com/example/Entity.java");
+        File other = new File(sources, "com/example/Other.java");
+        entity.getParentFile().mkdirs();
+        Files.write("package com.example; @com.mysema.query.annotations.QueryEntity public class Entity { Other other; }", entity, Charsets.UTF_8);
+        Files.write("package com.example; public class Other {}", other, Charsets.UTF_8);
+        mojo.compileSourceRoots = Lists.newArrayList(sources.getAbsolutePath());
+        mojo.setIncrementalProcessing(true);
+        mojo.execute();
+
+        // the generated files of referencing types are regenerated with the property type
+        Files.write("package com.example; @com.mysema.query.annotations.QueryEntity public class Other {}", other, Charsets.UTF_8);
+        mojo.execute();
+        String generated = Files.toString(new File(outputDir, "com/example/QEntity.java"), Charsets.UTF_8);
+        assertTrue(generated, generated.contains("QOther"));
+    }
+
+    @Test
+    public void IncrementalProcessing_UntrackedProcessor() throws Exception {
+        expectRepeatedExecutions();
+        File generated = new File(outputDir, "com/example/QEntity.java");
+        mojo.setTrackedProcessors(Collections.<String> emptySet());
+        mojo.setIncrementalProcessing(true);
+        mojo.execute();
+        assertTrue(generated.delete());
+
+        // all sources are processed
+        mojo.execute();
+        assertTrue(generated.exists());
+    }
+
+    @Test
+    public void ParallelShards() throws Exception {
+        File sources = folder.newFolder("sources");
+        File entity = new File(sources, "com/example/Entity.java");
+        File entity2 = new File(sources, "com/example2/Entity2.java");
+        entity.getParentFile().mkdirs();
+        entity2.getParentFile().mkdirs();
+        Files.write("package com.example; @com.mysema.query.annotations.QueryEntity public class Entity {}", entity, Charsets.UTF_8);
+        Files.write("package com.example2; @com.mysema.query.annotations.QueryEntity public class Entity2 {}", entity2, Charsets.UTF_8);
+        mojo.compileSourceRoots = Lists.newArrayList(sources.getAbsolutePath());
+        mojo.setParallelShards(2);
+        mojo.execute();
+        EasyMock.verify(project);
+        assertTrue(new File(outputDir, "com/example/QEntity.java").exists());
+        assertTrue(new File(outputDir, "com/example2/QEntity2.java").exists());
+    }
+
+    @Test
+    public void DirectOutput() throws Exception {
+        expectRepeatedExecutions();
+        File stale = new File(outputDir, "com/example/QStale.java");
+        stale.getParentFile().mkdirs();
+        Files.write("package com.example; public class QStale {}", stale, Charsets.UTF_8);
+        File generated = new File(outputDir, "com/example/QEntity.java");
+        mojo.setDirectOutput(true);
+        mojo.execute();
+        assertTrue(generated.exists());
+        assertFalse(stale.exists());
+
+        // unchanged content is not written again
+        assertTrue(generated.setLastModified(1000));
+        mojo.execute();
+        assertEquals(1000, generated.lastModified());
+    }
+
+    @Test
+    public void MetricsReport() throws Exception {
+        mojo.projectBuildDirectory = folder.getRoot();
+        mojo.setMetricsReport(true);
+        mojo.execute();
+        EasyMock.verify(project);
+        File[] reports = new File(folder.getRoot(), "apt-metrics").listFiles();
+        assertEquals(1, reports.length);
+        String report = Files.toString(reports[0], Charsets.UTF_8);
+        assertTrue(report, report.contains("\"result\": \"success\""));
+        assertTrue(report, report.contains("\"processing\": "));
+        assertTrue(report, report.contains("\"filesGenerated\": "));
+        assertTrue(report, report.contains("\"" + QuerydslAnnotationProcessor.class.getName() + "\": "));
+        assertTrue(report, report.contains("\"heapPeak\": "));
+    }
+
+    @Test
+    public void Profile() throws Exception {
+        mojo.projectBuildDirectory = folder.getRoot();
+        mojo.setLog(new SystemStreamLog());
+        mojo.setProfile(true);
+        mojo.execute();
+        EasyMock.verify(project);
+        File[] reports = new File(folder.getRoot(), "apt-profile").listFiles();
+        assertEquals(1, reports.length);
+        String report = Files.toString(reports[0], Charsets.UTF_8);
+        assertTrue(report, report.contains("round 1"));
+        assertTrue(report, report.contains("Entity.java"));
+    }
+
+    @Test
+    public void StreamSources() throws Exception {
+        final List<File> removed = Lists.newArrayList();
+        mojo.setBuildContext(new DefaultBuildContext() {
+            @Override
+            public void removeMessages(File file) {
+                removed.add(file);
+            }
+        });
+        mojo.setStreamSources(true);
+        mojo.execute();
+        EasyMock.verify(project);
+        assertTrue(new File(outputDir, "com/example/QEntity.java").exists());
+        assertEquals(Collections.singletonList(new File("src/test/resources/project-to-test/src/main/java/com/example").getAbsoluteFile()),
+                removed);
+    }
+
+    @Test
+    public void IndexClasspath() throws Exception {
+        expectRepeatedExecutions();
+        // index of another execution
+        File other = new File(folder.getRoot(), "apt-classpath/test-00000000.0000.index");
+        other.getParentFile().mkdirs();
+        Files.write("", other, Charsets.UTF_8);
+        mojo.projectBuildDirectory = folder.getRoot();
+        mojo.setIndexClasspath(true);
+        mojo.execute();
+        File generated = new File(outputDir, "com/example/QEntity.java");
+        assertTrue(generated.exists());
+        String content = Files.toString(generated, Charsets.UTF_8);
+        assertEquals(2, new File(folder.getRoot(), "apt-classpath").listFiles().length);
+        assertTrue(other.exists());
+
+        // the stored index is used
+        FileUtils.delete(outputDir);
+        mojo.execute();
+        assertEquals(content, Files.toString(generated, Charsets.UTF_8));
+    }
+
+    @Test
+    public void ProcessAndCompile() throws Exception {
+        File classes = new File(folder.getRoot(), "classes");
+        mojo.projectBuildDirectory = folder.getRoot();
+        mojo.classesDirectory = classes;
+        mojo.setProcessAndCompile(true);
+        mojo.execute();
+        EasyMock.verify(project);
+        assertTrue(new File(outputDir, "com/example/QEntity.java").exists());
+        assertTrue(new File(classes, "com/example/Entity.class").exists());
+        assertTrue(new File(classes, "com/example/QEntity.class").exists());
+        List<String> inputFiles = Files.readLines(new File(folder.getRoot(),
+                "maven-status/maven-compiler-plugin/compile/default-compile/inputFiles.lst"), Charsets.UTF_8);
+        assertTrue(inputFiles.toString(), inputFiles.contains(new File(outputDir, "com/example/QEntity.java").getAbsolutePath()));
+    }
+
+    @Test
+    public void Cache() throws Exception {
+        expectRepeatedExecutions();
+        File cacheDirectory = new File(folder.getRoot(), "cache");
+        mojo.projectBuildDirectory = folder.getRoot();
+        mojo.setMetricsReport(true);
+        mojo.setCache(true);
+        mojo.setCacheDirectory(cacheDirectory);
+        mojo.execute();
+        File generated = new File(outputDir, "com/example/QEntity.java");
+        String content = Files.toString(generated, Charsets.UTF_8);
+        assertEquals(1, cacheDirectory.listFiles().length - 1);
+
+        // the generated sources are restored from the cache
+        FileUtils.delete(outputDir);
+        mojo.execute();
+        assertEquals(content, Files.toString(generated, Charsets.UTF_8));
+        File report = new File(folder.getRoot(), "apt-metrics").listFiles()[0];
+        assertTrue(Files.toString(report, Charsets.UTF_8).contains("\"result\": \"cached\""));
+    }
+
+    @Test
+    public void Cache_SourcePath() throws Exception {
+        expectRepeatedExecutions();
+        File sources = folder.newFolder("sources");
+        File entity = new File(sources, "com/example/Entity.java");
+        File base = new File(sources, "com/base/Base.java");
+        entity.getParentFile().mkdirs();
+        base.getParentFile().mkdirs();
+        Files.write("package com.example; @com.mysema.query.annotations.QueryEntity public class Entity extends com.base.Base {}", entity, Charsets.UTF_8);
+        Files.write("package com.base; public class Base { String name; }", base, Charsets.UTF_8);
+        mojo.compileSourceRoots = Lists.newArrayList(sources.getAbsolutePath());
+        mojo.projectBuildDirectory = folder.getRoot();
+        mojo.setIncludes(Sets.newHashSet("com/example/**"));
+        mojo.setCache(true);
+        mojo.setCacheDirectory(new File(folder.getRoot(), "cache"));
+        mojo.execute();
+
+        // sources outside of the includes are part of the key
+        Files.write("package com.base; public class Base { String name, title; }", base, Charsets.UTF_8);
+        FileUtils.delete(outputDir);
+        mojo.execute();
+        String generated = Files.toString(new File(outputDir, "com/example/QEntity.java"), Charsets.UTF_8);
+        assertTrue(generated, generated.contains("title"));
+    }
+
+    @Test
+    public void RemoteCache() throws Exception {
+        expectRepeatedExecutions();
+        CacheServer server = new CacheServer();
+        try {
+            mojo.projectBuildDirectory = folder.getRoot();
+            mojo.setMetricsReport(true);
+            mojo.setRemoteCacheUrl(server.getUrl());
+            mojo.setRemoteCachePush(true);
+            mojo.execute();
+            File generated = new File(outputDir, "com/example/QEntity.java");
+            String content = Files.toString(generated, Charsets.UTF_8);
+            assertEquals(1, server.entries.size());
+
+            // the generated sources are restored from the remote cache
+            FileUtils.delete(outputDir);
+            mojo.execute();
+            assertEquals(content, Files.toString(generated, Charsets.UTF_8));
+            File report = new File(folder.getRoot(), "apt-metrics").listFiles()[0];
+            assertTrue(Files.toString(report, Charsets.UTF_8).contains("\"cache\": \"remote\""));
+
+            // failures of the remote cache fall through to processing
+            server.status = 500;
+            FileUtils.delete(outputDir);
+            mojo.execute();
+            assertEquals(content, Files.toString(generated, Charsets.UTF_8));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void FileManagerPool() throws Exception {
+        expectRepeatedExecutions();
+        mojo.setFileManagerPoolSize(1024);
+        mojo.execute();
+        FileUtils.delete(outputDir);
+        mojo.execute();
+        assertTrue(new File(outputDir, "com/example/QEntity.java").exists());
+    }
+
+    @Test
+    public void Fork() throws Exception {
+        expectRepeatedExecutions();
+        File daemonDirectory = folder.newFolder("daemon");
+        mojo.setFork(true);
+        mojo.setForkDirectory(daemonDirectory);
+        mojo.setForkIdleTimeout(5);
+        mojo.execute();
+        assertTrue(new File(outputDir, "com/example/QEntity.java").exists());
+        File portFile = daemonDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".port");
+            }
+        })[0];
+        String port = Files.toString(portFile, Charsets.UTF_8);
+
+        // the running daemon is reused
+        FileUtils.delete(outputDir);
+        mojo.execute();
+        assertTrue(new File(outputDir, "com/example/QEntity.java").exists());
+        assertEquals(port, Files.toString(portFile, Charsets.UTF_8));
+    }
+
     @Test
     public void Artifacts() throws MojoExecutionException {
         DefaultArtifact artifact = new DefaultArtifact("a", "b", VersionRange.createFromVersion("0.1"), "compile", "jar", "", null);
@@ -0,0 +1,72 @@
+package com.mysema.maven.apt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-memory build cache server on a local port
+ */
+public class CacheServer implements HttpHandler {
+
+    final Map<String, byte[]> entries = new ConcurrentHashMap<String, byte[]>();
+
+    final List<String> requests = new CopyOnWriteArrayList<String>();
+
+    volatile int status;
+
+    volatile String authorization;
+
+    private final HttpServer server;
+
+    public CacheServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this);
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/cache/";
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String key = exchange.getRequestURI().getPath().substring("/cache/".length());
+        requests.add(method + " " + key);
+        authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        InputStream in = exchange.getRequestBody();
+        byte[] body = ByteStreams.toByteArray(in);
+        in.close();
+        if (status != 0) {
+            exchange.sendResponseHeaders(status, -1);
+        } else if (method.equals("PUT")) {
+            entries.put(key, body);
+            exchange.sendResponseHeaders(201, -1);
+        } else if (entries.containsKey(key)) {
+            byte[] entry = entries.get(key);
+            exchange.sendResponseHeaders(200, entry.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(entry);
+            out.close();
+        } else {
+            exchange.sendResponseHeaders(404, -1);
+        }
+        exchange.close();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.mysema.maven.apt;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.net.URLClassLoader;
+import java.util.List;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.project.MavenProject;
+import org.easymock.EasyMock;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.mysema.query.apt.QuerydslAnnotationProcessor;
+
+public class CombinedAnnotationProcessorMojoTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File outputDir, testOutputDir;
+
+    private MavenProject project;
+
+    private CombinedAnnotationProcessorMojo createMojo() throws Exception {
+        outputDir = new File(folder.getRoot(), "generated-sources/java");
+        testOutputDir = new File(folder.getRoot(), "generated-test-sources/java");
+        project = EasyMock.createMock(MavenProject.class);
+        URLClassLoader loader = (URLClassLoader) Thread.currentThread().getContextClassLoader();
+        List<String> classpath = ClassPathUtils.getClassPath(loader);
+        project.addCompileSourceRoot(outputDir.getAbsolutePath());
+        EasyMock.expectLastCall();
+        project.addTestCompileSourceRoot(testOutputDir.getAbsolutePath());
+        EasyMock.expectLastCall().anyTimes();
+        EasyMock.replay(project);
+
+        CombinedAnnotationProcessorMojo mojo = new CombinedAnnotationProcessorMojo();
+        mojo.setBuildContext(new DefaultBuildContext());
+        mojo.setCompilerOptions(Maps.<String, String> newHashMap());
+        mojo.setIncludes(Sets.<String> newHashSet());
+        mojo.setLog(EasyMock.createNiceMock(Log.class));
+        mojo.setLogOnlyOnError(false);
+        mojo.setOptions(Maps.<String, String> newHashMap());
+        mojo.setProcessor(QuerydslAnnotationProcessor.class.getName());
+        mojo.setProject(project);
+        mojo.setSourceEncoding("UTF-8");
+        mojo.setOutputDirectory(outputDir);
+        mojo.setTestOutputDirectory(testOutputDir);
+        mojo.projectBuildDirectory = folder.getRoot();
+        mojo.compileSourceRoots = Lists.newArrayList("src/test/resources/project-to-test/src/main/java");
+        mojo.testCompileSourceRoots = Lists.newArrayList("src/test/resources/project-to-test/src/test/java");
+        mojo.testClasspathElements = classpath;
+        return mojo;
+    }
+
+    @Test
+    public void Execute() throws Exception {
+        CombinedAnnotationProcessorMojo mojo = createMojo();
+        mojo.execute();
+
+        EasyMock.verify(project);
+
+        // outputs are routed by the origin of the generated files
+        assertTrue(new File(outputDir, "com/example/QEntity.java").exists());
+        assertFalse(new File(outputDir, "com/example/QEntity2.java").exists());
+        assertTrue(new File(testOutputDir, "com/example/QEntity2.java").exists());
+        assertFalse(new File(testOutputDir, "com/example/QEntity.java").exists());
+    }
+
+    @Test
+    public void UnsupportedOptions() throws Exception {
+        CombinedAnnotationProcessorMojo mojo = createMojo();
+        mojo.setFork(true);
+        mojo.setCache(true);
+        try {
+            mojo.execute();
+            fail("Expected failure");
+        } catch (MojoExecutionException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("fork, cache not supported"));
+        }
+        assertFalse(outputDir.exists());
+    }
+
+}
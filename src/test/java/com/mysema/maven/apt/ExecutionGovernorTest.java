@@ -0,0 +1,75 @@
+package com.mysema.maven.apt;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExecutionGovernorTest {
+
+    private static Thread acquireAsync(final int maxRunning, final long budget, final long demand,
+            final CountDownLatch admitted) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ExecutionGovernor.acquire(maxRunning, budget, demand).close();
+                    admitted.countDown();
+                } catch (InterruptedException e) {
+                    // ignore
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void permits() throws Exception {
+        ExecutionGovernor.Permit first = ExecutionGovernor.acquire(1, 100, 10);
+        CountDownLatch admitted = new CountDownLatch(1);
+        acquireAsync(1, 100, 10, admitted);
+        assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+        first.close();
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void budget() throws Exception {
+        ExecutionGovernor.Permit first = ExecutionGovernor.acquire(4, 100, 60);
+        CountDownLatch admitted = new CountDownLatch(1);
+        acquireAsync(4, 100, 60, admitted);
+        assertFalse(admitted.await(200, TimeUnit.MILLISECONDS));
+        first.close();
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void unlimited() throws Exception {
+        ExecutionGovernor.Permit first = ExecutionGovernor.acquire(Integer.MAX_VALUE, Long.MAX_VALUE, 10);
+        ExecutionGovernor.Permit second = ExecutionGovernor.acquire(Integer.MAX_VALUE, Long.MAX_VALUE, 10);
+        second.close();
+        first.close();
+    }
+
+    @Test
+    public void single_Execution_Exceeding_Budget() throws Exception {
+        ExecutionGovernor.acquire(1, 100, 1000).close();
+    }
+
+    @Test
+    public void interrupted() throws Exception {
+        ExecutionGovernor.Permit first = ExecutionGovernor.acquire(1, 100, 10);
+        Thread waiting = acquireAsync(1, 100, 10, new CountDownLatch(1));
+        Thread.sleep(100);
+        waiting.interrupt();
+        waiting.join(5000);
+        first.close();
+
+        // the interrupted execution doesn't block later ones
+        ExecutionGovernor.acquire(1, 100, 10).close();
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.mysema.maven.apt;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class FileManagerPoolTest {
+
+    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+    @After
+    public void tearDown() throws IOException {
+        FileManagerPool.clear();
+    }
+
+    @Test
+    public void Reuse() throws IOException {
+        String key = FileManagerPool.getKey(Collections.singletonList("target/classes"), "UTF-8");
+        StandardJavaFileManager fileManager = FileManagerPool.acquire(compiler, key);
+        FileManagerPool.release(key, 10, fileManager, 100);
+
+        assertSame(fileManager, FileManagerPool.acquire(compiler, key));
+        assertNotSame(fileManager, FileManagerPool.acquire(compiler, key));
+    }
+
+    @Test
+    public void Different_Key() throws IOException {
+        String key = FileManagerPool.getKey(Collections.singletonList("target/classes"), "UTF-8");
+        String key2 = FileManagerPool.getKey(Collections.singletonList("target/classes"), "ISO-8859-1");
+        assertFalse(key.equals(key2));
+
+        StandardJavaFileManager fileManager = FileManagerPool.acquire(compiler, key);
+        FileManagerPool.release(key, 10, fileManager, 100);
+        assertNotSame(fileManager, FileManagerPool.acquire(compiler, key2));
+    }
+
+    @Test
+    public void Eviction() throws IOException {
+        String key = FileManagerPool.getKey(Collections.singletonList("target/classes"), "UTF-8");
+        StandardJavaFileManager fileManager1 = FileManagerPool.acquire(compiler, key);
+        StandardJavaFileManager fileManager2 = FileManagerPool.acquire(compiler, key);
+        FileManagerPool.release(key, 60, fileManager1, 100);
+        FileManagerPool.release(key, 60, fileManager2, 100);
+
+        // least recently used was closed
+        assertSame(fileManager2, FileManagerPool.acquire(compiler, key));
+        assertNotSame(fileManager1, FileManagerPool.acquire(compiler, key));
+    }
+
+}
@@ -3,9 +3,13 @@ package com.mysema.maven.apt;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
 
 import com.google.common.base.Charsets;
 import com.google.common.io.Files;
+import org.apache.commons.io.FileUtils;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -33,7 +37,7 @@ public class FileSyncTest {
         File targetFile = new File(target, "inTarget");
         targetFile.createNewFile();
 
-        FileSync.syncFiles(true, source, target);
+        FileSync.syncFiles(true, source, target, new File(folder.getRoot(), "manifest"));
         assertTrue(new File(target, "inSource").exists());
         assertTrue(new File(target, "inSourceFolder" + File.separator + "inSource").exists());
         assertFalse(targetFile.exists());
@@ -49,7 +53,7 @@ public class FileSyncTest {
         Files.write("abc", targetFile, Charsets.UTF_8);
         long modified = targetFile.lastModified();
 
-        FileSync.syncFiles(true, source, target);
+        FileSync.syncFiles(true, source, target, new File(folder.getRoot(), "manifest"));
         assertEquals(modified, targetFile.lastModified());
     }
 
@@ -70,7 +74,7 @@ public class FileSyncTest {
         Files.write("ghi", targetFile1, Charsets.UTF_8);
         Files.write("jkl", targetFile2, Charsets.UTF_8);
 
-        FileSync.syncFiles(true, source, target);
+        FileSync.syncFiles(true, source, target, new File(folder.getRoot(), "manifest"));
         assertFalse(targetFile1.exists());
         assertFalse(targetFile2.exists());
         assertFalse(targetFile2.getParentFile().exists());
@@ -78,4 +82,122 @@ public class FileSyncTest {
         assertTrue(Paths.get(target.getAbsolutePath(), "com", "mysema", "Entity.java").toFile().exists());
     }
 
+    @Test
+    public void syncWithManifest() throws IOException {
+        final File source = folder.newFolder("source");
+        final File target = folder.newFolder("target");
+        File manifest = new File(folder.getRoot(), "manifest");
+        File targetFile1 = new File(target, "com/mysema/A.java");
+        File targetFile2 = new File(target, "com/mysema/B.java");
+        File stray = new File(target, "Stray.java");
+        Files.write("xyz", stray, Charsets.UTF_8);
+        write(source, "com/mysema/A.java", "abc");
+        write(source, "com/mysema/B.java", "def");
+
+        FileSync.syncFiles(true, source, target, manifest);
+        assertTrue(manifest.exists());
+        assertTrue(targetFile1.exists());
+        assertTrue(targetFile2.exists());
+        assertFalse(stray.exists());
+
+        // files unknown to the manifest are kept, unchanged files are not replaced
+        FileUtils.deleteDirectory(source);
+        write(source, "com/mysema/A.java", "abc");
+        write(source, "com/mysema/C.java", "ghi");
+        Files.write("xyz", stray, Charsets.UTF_8);
+        assertTrue(targetFile1.setLastModified(1000));
+        FileSync.syncFiles(true, source, target, manifest);
+        assertEquals(1000, targetFile1.lastModified());
+        assertFalse(targetFile2.exists());
+        assertTrue(new File(target, "com/mysema/C.java").exists());
+        assertTrue(stray.exists());
+
+        // target files modified after the sync are compared by content
+        FileUtils.deleteDirectory(source);
+        write(source, "com/mysema/A.java", "abc");
+        Files.write("abd", targetFile1, Charsets.UTF_8);
+        FileSync.syncFiles(false, source, target, manifest);
+        assertEquals("abc", Files.toString(targetFile1, Charsets.UTF_8));
+        assertTrue(new File(target, "com/mysema/C.java").exists());
+    }
+
+    @Test
+    public void syncParallel() throws IOException {
+        final File source = folder.newFolder("source");
+        final File target = folder.newFolder("target");
+        File manifest = new File(folder.getRoot(), "manifest");
+        for (int i = 0; i < 500; i++) {
+            write(source, "com/mysema/p" + (i % 10) + "/Q" + i + ".java", "class Q" + i + " {}");
+        }
+        write(target, "com/mysema/old/QOld.java", "class QOld {}");
+        write(target, "com/mysema/p1/Q1.java", "class Q1 {}");
+        File unchanged = new File(target, "com/mysema/p1/Q1.java");
+        assertTrue(unchanged.setLastModified(1000));
+
+        FileSync.syncFiles(true, source, target, manifest, 4);
+        for (int i = 0; i < 500; i++) {
+            File file = new File(target, "com/mysema/p" + (i % 10) + "/Q" + i + ".java");
+            assertEquals("class Q" + i + " {}", Files.toString(file, Charsets.UTF_8));
+        }
+        assertEquals(1000, unchanged.lastModified());
+        assertFalse(new File(target, "com/mysema/old").exists());
+    }
+
+    @Test
+    public void syncChanges() throws IOException {
+        final File source = folder.newFolder("source");
+        final File target = folder.newFolder("target");
+        File manifest = new File(folder.getRoot(), "manifest");
+        write(source, "com/mysema/A.java", "abc");
+        write(source, "com/mysema/B.java", "def");
+        write(source, "com/mysema/C.java", "ghi");
+        FileSync.syncFiles(true, source, target, manifest);
+
+        FileUtils.deleteDirectory(source);
+        write(source, "com/mysema/A.java", "abc");
+        write(source, "com/mysema/B.java", "xyz");
+        write(source, "com/mysema/sub/D.java", "jkl");
+        File unchanged = new File(target, "com/mysema/A.java");
+        assertTrue(unchanged.setLastModified(1000));
+        Object inode = java.nio.file.Files.readAttributes(unchanged.toPath(), BasicFileAttributes.class).fileKey();
+
+        FileSync.Result result = FileSync.syncFiles(true, source, target, manifest);
+        assertEquals(Collections.singleton("com/mysema/sub/D.java"), result.getAdded());
+        assertEquals(Collections.singleton("com/mysema/B.java"), result.getModified());
+        assertEquals(Collections.singleton("com/mysema/C.java"), result.getRemoved());
+        assertEquals(3, result.getChanges().size());
+        assertEquals(1, result.getUnchanged());
+        assertEquals(1000, unchanged.lastModified());
+        assertEquals(inode, java.nio.file.Files.readAttributes(unchanged.toPath(), BasicFileAttributes.class).fileKey());
+    }
+
+    private static void write(File directory, String path, String content) throws IOException {
+        File file = new File(directory, path);
+        file.getParentFile().mkdirs();
+        Files.write(content, file, Charsets.UTF_8);
+    }
+
+    @Test
+    public void merge() throws IOException {
+        final File source = folder.newFolder("source");
+        final File target = folder.newFolder("target");
+        File sourceFile1 = Paths.get(source.getAbsolutePath(), "com", "mysema", "Same.java").toFile();
+        File sourceFile2 = Paths.get(source.getAbsolutePath(), "com", "mysema", "Different.java").toFile();
+        File sourceFile3 = Paths.get(source.getAbsolutePath(), "com", "mysema", "New.java").toFile();
+        File targetFile1 = Paths.get(target.getAbsolutePath(), "com", "mysema", "Same.java").toFile();
+        File targetFile2 = Paths.get(target.getAbsolutePath(), "com", "mysema", "Different.java").toFile();
+        sourceFile1.getParentFile().mkdirs();
+        targetFile1.getParentFile().mkdirs();
+        Files.write("abc", sourceFile1, Charsets.UTF_8);
+        Files.write("def", sourceFile2, Charsets.UTF_8);
+        Files.write("ghi", sourceFile3, Charsets.UTF_8);
+        Files.write("abc", targetFile1, Charsets.UTF_8);
+        Files.write("xyz", targetFile2, Charsets.UTF_8);
+
+        List<String> conflicts = FileSync.mergeFiles(source, target);
+        assertEquals(Collections.singletonList("com/mysema/Different.java"), conflicts);
+        assertEquals("xyz", Files.toString(targetFile2, Charsets.UTF_8));
+        assertTrue(Paths.get(target.getAbsolutePath(), "com", "mysema", "New.java").toFile().exists());
+    }
+
 }
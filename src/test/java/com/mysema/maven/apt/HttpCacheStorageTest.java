@@ -0,0 +1,69 @@
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class HttpCacheStorageTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CacheServer server;
+
+    private HttpCacheStorage storage;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new CacheServer();
+        storage = new HttpCacheStorage(server.getUrl(), 5000);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void storeAndRestore() throws IOException {
+        File source = folder.newFolder("source");
+        new File(source, "com/example").mkdirs();
+        Files.write("class QEntity {}", new File(source, "com/example/QEntity.java"), Charsets.UTF_8);
+        storage.store("abc", source);
+        assertTrue(server.entries.containsKey("abc"));
+
+        File target = folder.newFolder("target");
+        assertTrue(storage.restore("abc", target));
+        assertEquals("class QEntity {}", Files.toString(new File(target, "com/example/QEntity.java"), Charsets.UTF_8));
+    }
+
+    @Test
+    public void missing() throws IOException {
+        assertFalse(storage.restore("abc", folder.newFolder("target")));
+        assertEquals("GET abc", server.requests.get(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void serverError() throws IOException {
+        server.status = 500;
+        storage.restore("abc", folder.newFolder("target"));
+    }
+
+    @Test
+    public void basicAuthentication() throws IOException {
+        storage = new HttpCacheStorage(server.getUrl().replace("http://", "http://user:secret@"), 5000);
+        assertFalse(storage.restore("abc", folder.newFolder("target")));
+        assertEquals("Basic dXNlcjpzZWNyZXQ=", server.authorization);
+    }
+
+}
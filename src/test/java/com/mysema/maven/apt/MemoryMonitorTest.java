@@ -0,0 +1,92 @@
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class MemoryMonitorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CompilationTask createTask() throws IOException {
+        File source = folder.newFile("Entity.java");
+        Files.write("public class Entity {}", source, Charsets.UTF_8);
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        List<String> options = Arrays.asList("-proc:only", "-s", folder.getRoot().getAbsolutePath());
+        CompilationTask task = compiler.getTask(null, fileManager, null, options, null,
+                fileManager.getJavaFileObjects(source));
+        task.setProcessors(Collections.singletonList(new AbstractProcessor() {
+            @Override
+            public Set<String> getSupportedAnnotationTypes() {
+                return Collections.singleton("*");
+            }
+
+            @Override
+            public SourceVersion getSupportedSourceVersion() {
+                return SourceVersion.latestSupported();
+            }
+
+            @Override
+            public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+                return false;
+            }
+        }));
+        return task;
+    }
+
+    @Test
+    public void rounds() throws IOException {
+        MemoryMonitor monitor = new MemoryMonitor(0);
+        CompilationTask task = createTask();
+        assertTrue(monitor.attach(task));
+        assertTrue(task.call());
+
+        List<MemoryMonitor.Round> rounds = monitor.getRounds();
+        assertEquals(2, rounds.size());
+        for (MemoryMonitor.Round round : rounds) {
+            assertTrue(round.getAllocatedBytes() != 0);
+            assertTrue(round.getHeapUsed() > 0);
+            assertTrue(round.getGcTime() >= 0);
+        }
+        assertNull(monitor.getLimitExceeded());
+    }
+
+    @Test
+    public void softLimit() throws IOException {
+        // updates the heap usage after collection
+        System.gc();
+        MemoryMonitor monitor = new MemoryMonitor(1);
+        CompilationTask task = createTask();
+        assertTrue(monitor.attach(task));
+        try {
+            task.call();
+            fail("Expected failure");
+        } catch (RuntimeException e) {
+            assertNotNull(monitor.getLimitExceeded());
+            assertTrue(monitor.getLimitExceeded(), monitor.getLimitExceeded().contains("exceeds the soft limit"));
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.mysema.maven.apt;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.TypeElement;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ProcessingWatchdogTest {
+
+    private static final Set<TypeElement> NO_ANNOTATIONS = Collections.emptySet();
+
+    @Test
+    public void dumpAndCancel() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        ProcessingWatchdog watchdog = new ProcessingWatchdog("apt-test");
+        final Processor first = watchdog.watch(new AbstractProcessor() {
+            @Override
+            public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+                return false;
+            }
+        });
+        final Processor second = watchdog.watch(new AbstractProcessor() {
+            @Override
+            public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+                if (roundEnv.processingOver()) {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // ignore
+                    }
+                }
+                return false;
+            }
+        });
+        final RoundEnvironment round1 = EasyMock.createMock(RoundEnvironment.class);
+        final RoundEnvironment round2 = EasyMock.createMock(RoundEnvironment.class);
+        EasyMock.expect(round1.processingOver()).andReturn(false);
+        EasyMock.expect(round2.processingOver()).andReturn(true);
+        EasyMock.replay(round1, round2);
+
+        Thread thread = watchdog.newThread(new Runnable() {
+            @Override
+            public void run() {
+                first.process(NO_ANNOTATIONS, round1);
+                second.process(NO_ANNOTATIONS, round1);
+                first.process(NO_ANNOTATIONS, round2);
+                second.process(NO_ANNOTATIONS, round2);
+                try {
+                    first.process(NO_ANNOTATIONS, round1);
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            }
+        });
+        assertTrue(thread.isDaemon());
+        thread.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        while (thread.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+
+        String dump = watchdog.dump();
+        assertTrue(dump, dump.startsWith("\"apt-test-1\" WAITING in round 2\n"));
+        assertTrue(dump, dump.contains(ProcessingWatchdogTest.class.getName()));
+
+        watchdog.cancel();
+        release.countDown();
+        thread.join(5000);
+        assertTrue(watchdog.isCancelled());
+        assertTrue(failure.get() instanceof CancellationException);
+        assertEquals("", watchdog.dump());
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.EnumSet;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class ProcessorDaemonTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void portFile_Permissions() throws Exception {
+        File portFile = new File(folder.getRoot(), "daemon/test.port");
+        Assume.assumeTrue(folder.getRoot().toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+        ProcessorDaemon daemon = new ProcessorDaemon(portFile, 1000);
+        daemon.start();
+        try {
+            assertEquals(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE),
+                    Files.getPosixFilePermissions(portFile.toPath()));
+            assertFalse(new File(portFile.getPath() + ".tmp").exists());
+        } finally {
+            daemon.stop();
+        }
+    }
+
+}
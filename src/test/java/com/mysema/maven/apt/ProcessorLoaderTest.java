@@ -0,0 +1,115 @@
+package com.mysema.maven.apt;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.processing.Processor;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.DefaultArtifact;
+import org.apache.maven.artifact.versioning.VersionRange;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.mysema.query.apt.QuerydslAnnotationProcessor;
+
+public class ProcessorLoaderTest {
+
+    private final ClassLoader parent = ClassLoader.getSystemClassLoader().getParent();
+
+    private final List<String> processorPath = ClassPathUtils.getClassPath((URLClassLoader) getClass().getClassLoader());
+
+    @After
+    public void tearDown() throws IOException {
+        ProcessorLoader.clear();
+    }
+
+    private List<Artifact> artifacts(String version) {
+        List<Artifact> artifacts = new ArrayList<Artifact>();
+        for (String element : processorPath) {
+            DefaultArtifact artifact = new DefaultArtifact("com.example", "artifact" + artifacts.size(),
+                    VersionRange.createFromVersion(version), "compile", "jar", "", null);
+            artifact.setFile(new File(element));
+            artifacts.add(artifact);
+        }
+        return artifacts;
+    }
+
+    private Class<?> load(List<Artifact> pluginArtifacts) throws Exception {
+        ProcessorLoader loader = new ProcessorLoader(parent, pluginArtifacts, processorPath);
+        try {
+            List<Processor> processors = loader.load(QuerydslAnnotationProcessor.class.getName());
+            assertEquals(1, processors.size());
+            return processors.get(0).getClass();
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Test
+    public void Shared() throws Exception {
+        Class<?> processorClass = load(artifacts("1.0"));
+        assertSame(processorClass, load(artifacts("1.0")));
+        assertNotSame(processorClass, load(artifacts("1.1")));
+    }
+
+    @Test
+    public void Snapshot_Key() throws Exception {
+        File jar = File.createTempFile("processor", ".jar");
+        try {
+            DefaultArtifact artifact = new DefaultArtifact("com.example", "processor",
+                    VersionRange.createFromVersion("1.0-SNAPSHOT"), "compile", "jar", "", null);
+            artifact.setFile(jar);
+            List<Artifact> artifacts = Collections.<Artifact> singletonList(artifact);
+            Files.write("abc", jar, Charsets.UTF_8);
+            assertTrue(jar.setLastModified(1000));
+            String key = ProcessorLoader.getKey(artifacts);
+
+            // rebuilt with the same length and stamp
+            Files.write("def", jar, Charsets.UTF_8);
+            assertTrue(jar.setLastModified(1000));
+            assertFalse(key.equals(ProcessorLoader.getKey(artifacts)));
+        } finally {
+            jar.delete();
+        }
+    }
+
+    @Test
+    public void Project_First() throws Exception {
+        File jar = new File(QuerydslAnnotationProcessor.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        File copy = File.createTempFile("processor", ".jar");
+        try {
+            Files.copy(jar, copy);
+            DefaultArtifact artifact = new DefaultArtifact("com.example", "processor",
+                    VersionRange.createFromVersion("1.0"), "compile", "jar", "", null);
+            artifact.setFile(copy);
+            List<String> path = new ArrayList<String>(processorPath);
+            path.add(copy.getAbsolutePath());
+            ProcessorLoader loader = new ProcessorLoader(parent, Collections.<Artifact> singletonList(artifact), path);
+            try {
+                Class<?> processorClass = loader.load(QuerydslAnnotationProcessor.class.getName()).get(0).getClass();
+                assertEquals(jar.toURI().toURL(), processorClass.getProtectionDomain().getCodeSource().getLocation());
+            } finally {
+                loader.close();
+            }
+        } finally {
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void Not_In_Plugin_Artifacts() throws Exception {
+        Class<?> processorClass = load(Collections.<Artifact> emptyList());
+        assertNotSame(QuerydslAnnotationProcessor.class, processorClass);
+        assertNotSame(processorClass, load(Collections.<Artifact> emptyList()));
+    }
+
+}
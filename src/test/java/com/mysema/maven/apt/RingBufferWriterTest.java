@@ -0,0 +1,32 @@
+package com.mysema.maven.apt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class RingBufferWriterTest {
+
+    @Test
+    public void within_Capacity() throws IOException {
+        RingBufferWriter writer = new RingBufferWriter(10);
+        writer.write("abc");
+        writer.write("def");
+        assertEquals("abcdef", writer.toString());
+        assertEquals(0, writer.getTruncated());
+    }
+
+    @Test
+    public void truncated() throws IOException {
+        RingBufferWriter writer = new RingBufferWriter(5);
+        writer.write("abc");
+        writer.write("defg");
+        assertEquals(2, writer.getTruncated());
+        assertEquals("... (2 characters truncated)\ncdefg", writer.toString());
+
+        writer.write("0123456789");
+        assertEquals("... (12 characters truncated)\n56789", writer.toString());
+    }
+
+}
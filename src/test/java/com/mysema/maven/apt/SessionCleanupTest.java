@@ -0,0 +1,58 @@
+package com.mysema.maven.apt;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.apache.maven.execution.AbstractExecutionListener;
+import org.apache.maven.execution.DefaultMavenExecutionRequest;
+import org.apache.maven.execution.ExecutionEvent;
+import org.apache.maven.execution.ExecutionListener;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+import org.easymock.EasyMock;
+import org.junit.After;
+import org.junit.Test;
+
+public class SessionCleanupTest {
+
+    @After
+    public void tearDown() throws IOException {
+        SessionCleanup.close();
+    }
+
+    @Test
+    public void sessionEnded() throws IOException {
+        final int[] ended = new int[1];
+        MavenExecutionRequest request = new DefaultMavenExecutionRequest();
+        request.setExecutionListener(new AbstractExecutionListener() {
+            @Override
+            public void sessionEnded(ExecutionEvent event) {
+                ended[0]++;
+            }
+        });
+        MavenSession session = EasyMock.createMock(MavenSession.class);
+        EasyMock.expect(session.getRequest()).andReturn(request).anyTimes();
+        EasyMock.replay(session);
+        SessionCleanup.register(session);
+        ExecutionListener listener = request.getExecutionListener();
+        SessionCleanup.register(session);
+        assertSame(listener, request.getExecutionListener());
+
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        String key = FileManagerPool.getKey(Collections.singletonList("target/classes"), "UTF-8");
+        StandardJavaFileManager fileManager = FileManagerPool.acquire(compiler, key);
+        FileManagerPool.release(key, 10, fileManager, 100);
+
+        // the pool is cleared and the previous listener notified
+        listener.sessionEnded(null);
+        assertEquals(1, ended[0]);
+        assertNotSame(fileManager, FileManagerPool.acquire(compiler, key));
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.mysema.maven.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.codehaus.plexus.util.DirectoryScanner;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+import static org.junit.Assert.*;
+
+public class SourceScannerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void scan() throws IOException {
+        File root1 = folder.newFolder("root1");
+        File root2 = folder.newFolder("root2");
+        for (String path : Arrays.asList("Root.java", "com/example/Entity.java", "com/example/bo/Bo.java",
+                "com/example/sub/bo/deep/Bo2.java", "com/example/bo.txt", "com/other/bo/Other.java")) {
+            new File(root1, path).getParentFile().mkdirs();
+            new File(root1, path).createNewFile();
+            new File(root2, path).getParentFile().mkdirs();
+            new File(root2, path).createNewFile();
+        }
+
+        String[][][] filters = {
+            { { "**/*.java" }, {} },
+            { { "com/example/**/bo/**/*.java" }, {} },
+            { { "com/example/*.java", "com/other/**/*.java" }, {} },
+            { { "**/*.java" }, { "com/example/**/*.java" } },
+            { { "com/**/*.java" }, { "com/example/sub/**", "**/Other.java" } } };
+        for (String[][] filter : filters) {
+            String[] includes = filter[0], excludes = filter[1];
+            SourceScanner.Result result = new SourceScanner(new DefaultBuildContext(), includes, excludes)
+                .scan(Arrays.asList(root1, root2));
+            Set<File> expected = new HashSet<File>();
+            for (File root : Arrays.asList(root1, root2)) {
+                DirectoryScanner scanner = new DirectoryScanner();
+                scanner.setBasedir(root);
+                scanner.setIncludes(includes);
+                scanner.setExcludes(excludes);
+                scanner.scan();
+                for (String file : scanner.getIncludedFiles()) {
+                    expected.add(new File(root, file));
+                }
+            }
+            assertFalse(expected.isEmpty());
+            assertEquals(Arrays.toString(includes) + Arrays.toString(excludes), expected, result.getFiles());
+            assertFalse(result.hasDeletedFiles());
+        }
+    }
+
+    @Test
+    public void prune() {
+        SourceFilter filter = SourceFilter.of(new String[] { "com/acme/domain/**/*.java", "org/*/model/*.java" },
+                new String[] { "com/acme/domain/generated/**/*.java" });
+        assertTrue(filter.couldHoldIncluded(""));
+        assertTrue(filter.couldHoldIncluded("com/acme"));
+        assertTrue(filter.couldHoldIncluded("com/acme/domain/sub"));
+        assertTrue(filter.couldHoldIncluded("org/example/model"));
+        assertFalse(filter.couldHoldIncluded("com/other"));
+        assertFalse(filter.couldHoldIncluded("com/acme/web"));
+        assertFalse(filter.couldHoldIncluded("com/acme/domain/generated"));
+        assertFalse(filter.couldHoldIncluded("org/example/web"));
+        assertFalse(filter.couldHoldIncluded("org/example/model/sub"));
+
+        assertTrue(filter.isIncluded("com/acme/domain/Entity.java"));
+        assertTrue(filter.isIncluded("com/acme/domain/sub/Entity.java"));
+        assertTrue(filter.isIncluded("org/example/model/Entity.java"));
+        assertFalse(filter.isIncluded("com/acme/domain/generated/QEntity.java"));
+        assertFalse(filter.isIncluded("com/acme/domain/Entity.txt"));
+        assertFalse(filter.isIncluded("org/example/model/sub/Entity.java"));
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.mysema.maven.apt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+import org.junit.Test;
+import org.sonatype.plexus.build.incremental.BuildContext;
+import org.sonatype.plexus.build.incremental.DefaultBuildContext;
+
+import com.google.common.base.Function;
+import com.google.common.base.Functions;
+import com.google.common.collect.Lists;
+
+public class StreamingDiagnosticListenerTest {
+
+    private final List<String> messages = Lists.newArrayList();
+
+    private final BuildContext buildContext = new DefaultBuildContext() {
+        @Override
+        public void addMessage(File file, int line, int column, String message, int severity, Throwable cause) {
+            messages.add(file.getName() + ":" + line + " " + message);
+        }
+    };
+
+    private final StreamingDiagnosticListener listener = new StreamingDiagnosticListener(buildContext,
+            new Function<File, File>() {
+                @Override
+                public File apply(File input) {
+                    return new File("mapped", input.getName());
+                }
+            }, 2);
+
+    private static Diagnostic<JavaFileObject> diagnostic(final Diagnostic.Kind kind, final String file,
+            final long line, final String message) {
+        final JavaFileObject source = new SimpleJavaFileObject(new File(file).toURI(), JavaFileObject.Kind.SOURCE) {};
+        return new Diagnostic<JavaFileObject>() {
+            @Override
+            public Kind getKind() {
+                return kind;
+            }
+
+            @Override
+            public JavaFileObject getSource() {
+                return source;
+            }
+
+            @Override
+            public long getPosition() {
+                return NOPOS;
+            }
+
+            @Override
+            public long getStartPosition() {
+                return NOPOS;
+            }
+
+            @Override
+            public long getEndPosition() {
+                return NOPOS;
+            }
+
+            @Override
+            public long getLineNumber() {
+                return line;
+            }
+
+            @Override
+            public long getColumnNumber() {
+                return 1;
+            }
+
+            @Override
+            public String getCode() {
+                return null;
+            }
+
+            @Override
+            public String getMessage(Locale locale) {
+                return message;
+            }
+        };
+    }
+
+    @Test
+    public void forwarded() {
+        listener.report(diagnostic(Diagnostic.Kind.ERROR, "A.java", 1, "error"));
+        listener.report(diagnostic(Diagnostic.Kind.NOTE, "A.java", 2, "note"));
+        assertEquals(Lists.newArrayList("A.java:1 error"), messages);
+        assertEquals(2, listener.getReported());
+        assertEquals(0, listener.getSuppressed());
+    }
+
+    @Test
+    public void duplicates() {
+        listener.report(diagnostic(Diagnostic.Kind.WARNING, "A.java", 1, "warning"));
+        listener.report(diagnostic(Diagnostic.Kind.WARNING, "A.java", 1, "warning"));
+        listener.report(diagnostic(Diagnostic.Kind.WARNING, "B.java", 1, "warning"));
+        assertEquals(Lists.newArrayList("A.java:1 warning", "B.java:1 warning"), messages);
+        assertEquals(1, listener.getSuppressed());
+    }
+
+    @Test
+    public void repeats() {
+        for (int i = 0; i < 5; i++) {
+            listener.report(diagnostic(Diagnostic.Kind.WARNING, "A.java", i, "warning"));
+        }
+        listener.report(diagnostic(Diagnostic.Kind.WARNING, "A.java", 10, "other"));
+        assertEquals(Lists.newArrayList("A.java:0 warning", "A.java:1 warning", "A.java:10 other"), messages);
+        assertEquals(3, listener.getSuppressed());
+    }
+
+    @Test
+    public void trackingLimit() {
+        StreamingDiagnosticListener limited = new StreamingDiagnosticListener(buildContext,
+                Functions.<File> identity(), 2, 2);
+        limited.report(diagnostic(Diagnostic.Kind.WARNING, "A.java", 1, "a"));
+        limited.report(diagnostic(Diagnostic.Kind.WARNING, "B.java", 1, "b"));
+        limited.report(diagnostic(Diagnostic.Kind.WARNING, "B.java", 1, "b"));
+        limited.report(diagnostic(Diagnostic.Kind.WARNING, "C.java", 1, "c"));
+        // the least recently seen diagnostic is no longer tracked
+        limited.report(diagnostic(Diagnostic.Kind.WARNING, "A.java", 1, "a"));
+        limited.report(diagnostic(Diagnostic.Kind.WARNING, "C.java", 1, "c"));
+        assertEquals(Lists.newArrayList("A.java:1 a", "B.java:1 b", "C.java:1 c", "A.java:1 a"), messages);
+        assertEquals(2, limited.getSuppressed());
+    }
+
+}
@@ -47,6 +47,7 @@ public class TestAnnotationProcessorMojoTest {
         mojo.setProject(project);
         mojo.setSourceEncoding("UTF-8");
         mojo.setOutputDirectory(outputDir);
+        mojo.projectBuildDirectory = targetDir;
         mojo.testClasspathElements = classpath;
         mojo.testCompileSourceRoots = sourceRoots;
         mojo.execute();